@@ -16,6 +16,64 @@ public abstract class Instr {
         def = d;
         use = u;
         jumps = j;
+        compile();
+    }
+
+    /**
+     * The assem string compiled into literal text interleaved with operand
+     * slots: text[0] slot[0] text[1] ... slot[n-1] text[n], where each slot
+     * names an operand kind ('s', 'd' or 'j') and an index.
+     */
+    private String compiled;
+    private String[] text;
+    private char[] kind;
+    private int[] slot;
+
+    private void compile() {
+        String a = assem;
+        int len = a.length();
+        int n = 0;
+        for (int i = 0; i < len; i++)
+            if (a.charAt(i) == '`' && ++i < len && a.charAt(i) != '`')
+                n++;
+        String[] t = new String[n + 1];
+        char[] k = new char[n];
+        int[] o = new int[n];
+        StringBuilder lit = new StringBuilder();
+        n = 0;
+        for (int i = 0; i < len; i++) {
+            char c = a.charAt(i);
+            if (c != '`') {
+                lit.append(c);
+                continue;
+            }
+            if (++i == len)
+                throw new Error("bad Assem format:" + a);
+            c = a.charAt(i);
+            switch (c) {
+            case 's':
+            case 'd':
+            case 'j':
+                if (++i == len)
+                    throw new Error("bad Assem format:" + a);
+                t[n] = lit.toString();
+                lit.setLength(0);
+                k[n] = c;
+                o[n] = Character.digit(a.charAt(i), 10);
+                n++;
+                break;
+            case '`':
+                lit.append('`');
+                break;
+            default:
+                throw new Error("bad Assem format:" + a);
+            }
+        }
+        t[n] = lit.toString();
+        text = t;
+        kind = k;
+        slot = o;
+        compiled = a;
     }
 
     public void replaceUse(Temp olduse, Temp newuse) {
@@ -31,35 +89,33 @@ public abstract class Instr {
     };
 
     public String format(Temp.Map m) {
-        StringBuffer s = new StringBuffer();
-        int len = assem.length();
-        for (int i = 0; i < len; i++)
-            if (assem.charAt(i) == '`')
-                switch (assem.charAt(++i)) {
-                case 's': {
-                    int n = Character.digit(assem.charAt(++i), 10);
-                    s.append(m.get(use[n]));
-                    break;
-                }
-                case 'd': {
-                    int n = Character.digit(assem.charAt(++i), 10);
-                    s.append(m.get(def[n]));
-                    break;
-                }
-                case 'j': {
-                    int n = Character.digit(assem.charAt(++i), 10);
-                    s.append(jumps[n]);
-                    break;
-                }
-                case '`':
-                    s.append('`');
-                    break;
-                default:
-                    throw new Error("bad Assem format:" + assem);
-                }
-            else
-                s.append(assem.charAt(i));
-        return s.toString();
+        return format(m, new StringBuilder()).toString();
+    }
+
+    /**
+     * Append the formatted instruction to s.
+     * @return  s
+     */
+    public StringBuilder format(Temp.Map m, StringBuilder s) {
+        // assem is a public field; recompile if someone has replaced it
+        if (compiled != assem)
+            compile();
+        int n = kind.length;
+        for (int i = 0; i < n; i++) {
+            s.append(text[i]);
+            switch (kind[i]) {
+            case 's':
+                s.append(m.get(use[slot[i]]));
+                break;
+            case 'd':
+                s.append(m.get(def[slot[i]]));
+                break;
+            default:
+                s.append(jumps[slot[i]]);
+                break;
+            }
+        }
+        return s.append(text[n]);
     }
 
     public static class LABEL extends Instr {
@@ -84,10 +140,10 @@ public abstract class Instr {
             return use[0];
         }
 
-        public String format(Temp.Map m) {
+        public StringBuilder format(Temp.Map m, StringBuilder s) {
             if (m.get(src()) == m.get(dst()))
-                return "#" + super.format(m);
-            return super.format(m);
+                s.append('#');
+            return super.format(m, s);
         }
     }
 
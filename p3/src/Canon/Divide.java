@@ -0,0 +1,115 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Canon;
+
+import java.util.*;
+import Translate.Temp;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * Expand DIV and MOD in canonical trees into the target's division.
+ *
+ * Until here DIV and MOD have M3's meaning: the quotient is rounded
+ * toward minus infinity, so the remainder has the sign of the divisor.
+ * The target's DIV rounds toward zero and its MOD is unsigned, which
+ * agree with M3 only on non-negative operands.  Each other DIV or MOD
+ * becomes the truncated quotient q and remainder r = x - q * y, corrected
+ * without branches when r is nonzero and its sign differs from that of
+ * y: the quotient by -1 and the remainder by y.  The operands are
+ * evaluated once, into temps, just before the statement.
+ */
+public class Divide {
+    /**
+     * Number of DIVs and MODs expanded.
+     */
+    public int expanded = 0;
+
+    private final int signShift;
+    private final LinkedList<Stm> out = new LinkedList<Stm>();
+
+    public Divide(int wordSize) {
+        signShift = wordSize * 8 - 1;
+    }
+
+    public LinkedList<Stm> stms(LinkedList<Stm> stms) {
+        for (Stm s : stms) {
+            Exp[] kids = s.kids();
+            boolean changed = false;
+            for (int k = 0; k < kids.length; k++) {
+                Exp e = exp(kids[k]);
+                changed |= e != kids[k];
+                kids[k] = e;
+            }
+            out.add(changed ? s.build(kids) : s);
+        }
+        return out;
+    }
+
+    private static boolean isConst(Exp e) {
+        return e instanceof CONST;
+    }
+
+    private static int value(Exp e) {
+        return ((CONST) e).value;
+    }
+
+    private Exp exp(Exp e) {
+        Exp[] kids = e.kids();
+        boolean changed = false;
+        for (int k = 0; k < kids.length; k++) {
+            Exp r = exp(kids[k]);
+            changed |= r != kids[k];
+            kids[k] = r;
+        }
+        if (changed)
+            e = e.build(kids);
+        if (!(e instanceof BINOP))
+            return e;
+        BINOP b = (BINOP) e;
+        if (b.op != BINOP.Operator.DIV && b.op != BINOP.Operator.MOD)
+            return e;
+        if (isConst(b.left) && value(b.left) >= 0
+            && isConst(b.right) && value(b.right) > 0)
+            return e;
+        expanded++;
+        Exp x = operand(b.left), y = operand(b.right);
+        Temp q = new Temp(), r = new Temp(), f = new Temp();
+        out.add(new MOVE(new TEMP(q), new BINOP(BINOP.Operator.DIV, x, y)));
+        out.add(new MOVE(new TEMP(r),
+                         new BINOP(BINOP.Operator.SUB, x,
+                                   new BINOP(BINOP.Operator.MUL, new TEMP(q), y))));
+        // f is -1 if the truncated quotient needs correcting, else 0
+        Exp wrong;
+        if (isConst(y) && value(y) > 0)
+            wrong = new TEMP(r);
+        else if (isConst(y))
+            wrong = new BINOP(BINOP.Operator.SUB, new CONST(0), new TEMP(r));
+        else
+            // r and y differ in sign, and r is nonzero
+            wrong = new BINOP(BINOP.Operator.AND,
+                              new BINOP(BINOP.Operator.XOR, new TEMP(r), y),
+                              new BINOP(BINOP.Operator.OR, new TEMP(r),
+                                        new BINOP(BINOP.Operator.SUB,
+                                                  new CONST(0), new TEMP(r))));
+        out.add(new MOVE(new TEMP(f),
+                         new BINOP(BINOP.Operator.SRA, wrong, new CONST(signShift))));
+        if (b.op == BINOP.Operator.DIV)
+            return new BINOP(BINOP.Operator.ADD, new TEMP(q), new TEMP(f));
+        return new BINOP(BINOP.Operator.ADD, new TEMP(r),
+                         new BINOP(BINOP.Operator.AND, y, new TEMP(f)));
+    }
+
+    /**
+     * e, or a temp holding its value, so that it can be used more than once.
+     */
+    private Exp operand(Exp e) {
+        if (e instanceof CONST || e instanceof TEMP)
+            return e;
+        Temp t = new Temp();
+        out.add(new MOVE(new TEMP(t), e));
+        return new TEMP(t);
+    }
+}
@@ -49,13 +49,7 @@ public class AssemFlowGraph extends FlowGraph<Assem.Instr, AssemNode> {
         }
         for (AssemNode n : nodes()) {
             LinkedList<Assem.Instr> instrs = n.instrs;
-            for (Assem.Instr i : instrs) {
-                for (Temp u : i.use)
-                    if (!n.def.contains(u))
-                        n.use.add(u);
-                for (Temp d : i.def)
-                    n.def.add(d);
-            }
+            summarize(n);
             Assem.Instr i = instrs.getLast();
             for (Label l : i.jumps) {
                 AssemNode t = blocks.get(l);
@@ -64,4 +58,20 @@ public class AssemFlowGraph extends FlowGraph<Assem.Instr, AssemNode> {
             }
         }
     }
+
+    /**
+     * Recompute the def and use sets of block n from its instructions, as
+     * after rewriting them.
+     */
+    public void summarize(AssemNode n) {
+        n.def.clear();
+        n.use.clear();
+        for (Assem.Instr i : n.instrs) {
+            for (Temp u : i.use)
+                if (!n.def.contains(u))
+                    n.use.add(u);
+            for (Temp d : i.def)
+                n.def.add(d);
+        }
+    }
 }
@@ -0,0 +1,130 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Graph;
+
+import java.util.*;
+
+/**
+ * The dominator tree of a graph from its entry node, computed by the
+ * iterative algorithm of Cooper, Harvey and Kennedy over reverse
+ * postorder.  Nodes the entry does not reach are in no tree: they neither
+ * dominate nor are dominated.
+ */
+public class Dominators<K, N extends Node<K, N>> {
+    private final N entry;
+    private final List<N> order;
+    private final ArrayList<N> idom;
+    // position in reverse postorder, -1 if unreachable
+    private final int[] number;
+
+    public Dominators(Graph<K, N> g, N entry) {
+        this.entry = entry;
+        int n = g.size();
+        order = g.reversePostorder(entry);
+        idom = new ArrayList<N>(Collections.<N>nCopies(n, null));
+        number = new int[n];
+        Arrays.fill(number, -1);
+        for (int i = 0; i < order.size(); i++)
+            number[order.get(i).index()] = i;
+        if (entry == null)
+            return;
+        idom.set(entry.index(), entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (N b : order) {
+                if (b == entry)
+                    continue;
+                N d = null;
+                for (N p : b.preds) {
+                    if (idom.get(p.index()) == null)
+                        continue;
+                    d = (d == null) ? p : nearest(p, d);
+                }
+                if (idom.get(b.index()) != d) {
+                    idom.set(b.index(), d);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The nearest node that dominates both a and b, which are reachable.
+     */
+    public N nearest(N a, N b) {
+        while (a != b) {
+            while (number[a.index()] > number[b.index()])
+                a = idom.get(a.index());
+            while (number[b.index()] > number[a.index()])
+                b = idom.get(b.index());
+        }
+        return a;
+    }
+
+    public boolean reachable(N b) {
+        return b.index() < number.length && number[b.index()] >= 0;
+    }
+
+    /**
+     * The immediate dominator of b, or null for the entry and for nodes
+     * the entry does not reach.
+     */
+    public N idom(N b) {
+        if (b == entry || !reachable(b))
+            return null;
+        return idom.get(b.index());
+    }
+
+    /**
+     * Does a dominate b?  Every node dominates itself.
+     */
+    public boolean dominates(N a, N b) {
+        if (!reachable(a) || !reachable(b))
+            return false;
+        for (;;) {
+            if (a == b)
+                return true;
+            if (b == entry)
+                return false;
+            b = idom.get(b.index());
+        }
+    }
+
+    /**
+     * The loop nesting depth of each node, by index: the number of natural
+     * loops it is in.  A natural loop is a header and the nodes that can
+     * reach a back edge into the header (an edge from a node it dominates)
+     * without passing through it; loops sharing a header are merged.
+     */
+    public int[] loopDepth() {
+        int[] depth = new int[number.length];
+        HashMap<N, BitSet> loops = new HashMap<N, BitSet>();
+        for (N b : order)
+            for (N h : b.succs) {
+                if (!dominates(h, b))
+                    continue;
+                BitSet body = loops.get(h);
+                if (body == null) {
+                    body = new BitSet(depth.length);
+                    body.set(h.index());
+                    loops.put(h, body);
+                }
+                LinkedList<N> work = new LinkedList<N>();
+                if (!body.get(b.index())) {
+                    body.set(b.index());
+                    work.add(b);
+                }
+                while (!work.isEmpty())
+                    for (N p : work.removeFirst().preds)
+                        if (reachable(p) && !body.get(p.index())) {
+                            body.set(p.index());
+                            work.add(p);
+                        }
+            }
+        for (BitSet body : loops.values())
+            for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1))
+                depth[b]++;
+        return depth;
+    }
+}
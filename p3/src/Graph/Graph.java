@@ -1,8 +1,11 @@
 /* Copyright (C) 1997-2005, Antony L Hosking.
  * All rights reserved.  */
 package Graph;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class Graph<K,N extends Node<K,N>> {
     private LinkedHashMap<K,N> nodes = new LinkedHashMap<K,N>();
@@ -13,7 +16,7 @@ public class Graph<K,N extends Node<K,N>> {
     public int size() { return nodes.size(); }
 
     void check(N n) {
-    	if (nodes.containsValue(n)) return;
+    	if (n.graph == this) return;
     	throw new Error("Graph.addEdge using nodes from the wrong graph");
     }
 
@@ -21,12 +24,44 @@ public class Graph<K,N extends Node<K,N>> {
     	check(from); check(to);
     	if (from.goesTo(to)) return;
     	to.preds.add(from);
-    	from.succs.add(to);
+    	from.addSucc(to);
     }
 
     public void rmEdge(N from, N to) {
     	to.preds.remove(from);
-    	from.succs.remove(to);
+    	from.rmSucc(to);
+    }
+
+    /**
+     * The nodes reachable from entry, in reverse postorder.
+     */
+    public List<N> reversePostorder(N entry) {
+        ArrayList<N> order = new ArrayList<N>(size());
+        if (entry == null)
+            return order;
+        boolean[] visited = new boolean[size()];
+        // explicit stack of (node, next successor) to avoid deep recursion
+        ArrayList<N> stack = new ArrayList<N>();
+        int[] next = new int[size()];
+        int sp = 0;
+        stack.add(entry);
+        visited[entry.index()] = true;
+        while (sp >= 0) {
+            N n = stack.get(sp);
+            if (next[sp] < n.succs.size()) {
+                N s = n.succs.get(next[sp]++);
+                if (!visited[s.index()]) {
+                    visited[s.index()] = true;
+                    stack.add(++sp, s);
+                    next[sp] = 0;
+                }
+            } else {
+                order.add(n);
+                stack.remove(sp--);
+            }
+        }
+        Collections.reverse(order);
+        return order;
     }
 
     /**
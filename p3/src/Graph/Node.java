@@ -1,21 +1,51 @@
 /* Copyright (C) 1997-2005, Antony L Hosking.
  * All rights reserved.  */
 package Graph;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-import java.util.LinkedList;
 
 public class Node<K, N extends Node<K, N>> {
     
     public Node(Graph<K,N> g, K key) {
+	graph = g;
 	index = g.size();
 	g.put(key, (N)this);
     }
 
-    public List<N> succs = new LinkedList<N>();
-    public List<N> preds = new LinkedList<N>();
+    /**
+     * The graph this node belongs to.
+     */
+    final Graph<K,N> graph;
+
+    public List<N> succs = new ArrayList<N>(2);
+    public List<N> preds = new ArrayList<N>(2);
+
+    /**
+     * Indices of successors, built once the out-degree makes scanning
+     * succs too slow for goesTo.
+     */
+    private BitSet succBits = null;
+    private static final int BITS_THRESHOLD = 8;
+
+    void addSucc(N n) {
+	succs.add(n);
+	if (succBits != null)
+	    succBits.set(n.index());
+	else if (succs.size() >= BITS_THRESHOLD) {
+	    succBits = new BitSet();
+	    for (N s : succs)
+		succBits.set(s.index());
+	}
+    }
+
+    void rmSucc(N n) {
+	if (succs.remove(n) && succBits != null)
+	    succBits.clear(n.index());
+    }
 
     public List<N> adj() {
-	LinkedList<N> l = new LinkedList<N>();
+	ArrayList<N> l = new ArrayList<N>(succs.size() + preds.size());
 	l.addAll(succs);
 	l.addAll(preds);
 	return l;
@@ -24,11 +54,24 @@ public class Node<K, N extends Node<K, N>> {
     public int outDegree() { return succs.size(); }
     public int degree   () { return inDegree() + outDegree(); }
 
-    public boolean goesTo   (N n) { return succs.contains(n); }
-    public boolean comesFrom(N n) { return preds.contains(n); }
+    public boolean goesTo(N n) {
+	if (succBits != null)
+	    return n.graph == graph && succBits.get(n.index());
+	// scan whichever side of the edge has fewer entries
+	if (n.preds.size() < succs.size())
+	    return n.preds.contains(this);
+	return succs.contains(n);
+    }
+    public boolean comesFrom(N n) {
+	// scan whichever side of the edge has fewer entries
+	if (preds.size() < n.succs.size())
+	    return preds.contains(n);
+	return n.succs.contains(this);
+    }
     public boolean adj      (N n) { return goesTo(n) || comesFrom(n); }
 
     private int index;
+    public int index() { return index; }
     public String toString() { return String.valueOf(index); }
-    public boolean equals(N n) { return index == n.index; }
+    public boolean equals(N n) { return index == n.index(); }
 }
@@ -367,14 +367,16 @@ public abstract class Absyn {
 	    public final List<Decl> decls;
 	    public final List<Stmt> stmts;
 	    public final Token external;
+	    public final Token inline;
 	    public Procedure(Token id, Type.Proc type,
 			     List<Decl> decls, List<Stmt> stmts,
-			     Token external) {
+			     Token external, Token inline) {
 		super(id);
 		this.type = type;
 		this.decls = decls;
 		this.stmts = stmts;
 		this.external = external;
+		this.inline = inline;
 	    }
 	    <R> R accept(Visitor<R> v) { return v.visit(this); }
 	}
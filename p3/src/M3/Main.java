@@ -4,6 +4,7 @@ package M3;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import Translate.Frame;
 import Translate.Frag;
 import Translate.Tree;
@@ -12,86 +13,266 @@ import Translate.Temp;
 public class Main {
     static PrintWriter out, dbg;
 
-    static void emitProc(Frag.Proc f) {
+    /**
+     * Run the back end for procedure f, the index'th fragment of the
+     * module, naming the labels it makes by their order within it.
+     */
+    static void emitProc(Frag.Proc f, int index, PrintWriter out,
+            PrintWriter dbg, Stats.Stats stats) {
+        Temp.Label.begin(index);
         Frame frame = f.frame;
-        dbg.println("PROCEDURE " + frame.name);
+        if (verbose)
+            dbg.println("PROCEDURE " + frame.name);
         LinkedList<Tree.Stm> traced = new LinkedList<Tree.Stm>();
         if (f.body != null) {
-            dbg.println("# Before canonicalization (trees):");
-            new Tree.Print(dbg, f.body);
+            Tree.Stm body = f.body;
+            if (folding) {
+                stats.start("fold");
+                Optimize.Simplify simplify = new Optimize.Simplify();
+                body = simplify.stm(body);
+                stats.stop();
+                stats.count("folded", simplify.folded);
+            }
+            if (dump("canon")) {
+                dbg.println("# Before canonicalization (trees):");
+                new Tree.Print(dbg, body);
+            }
 
-            LinkedList<Tree.Stm> stms = new Canon.Canon(f.body).stms();
+            stats.start("canon");
+            LinkedList<Tree.Stm> stms = new Canon.Canon(body).stms();
+            Canon.Divide divide = new Canon.Divide(frame.wordSize());
+            stms = divide.stms(stms);
+            stats.stop();
+            stats.count("divides", divide.expanded);
 
-            dbg.println("# After canonicalization (trees):");
-            new Tree.Print(dbg, stms);
+            if (dump("canon")) {
+                dbg.println("# After canonicalization (trees):");
+                new Tree.Print(dbg, stms);
+            }
 
-            dbg.println("# Basic Blocks:");
+            stats.start("blocks");
             Canon.BasicBlocks blocks = new Canon.BasicBlocks(stms);
-            for (LinkedList<Tree.Stm> b : blocks.list)
-                new Tree.Print(dbg, b);
+            stats.stop();
+
+            if (nullChecks || boundsChecks) {
+                Optimize.BlockGraph g = new Optimize.BlockGraph(blocks);
+                if (nullChecks) {
+                    stats.start("nce");
+                    Optimize.NullChecks nce = new Optimize.NullChecks(g, frame);
+                    nce.run();
+                    stats.stop();
+                    stats.count("nce", nce.removed);
+                }
+                if (boundsChecks) {
+                    stats.start("bce");
+                    Optimize.BoundsChecks bce = new Optimize.BoundsChecks(g, frame);
+                    bce.run();
+                    stats.stop();
+                    stats.count("bce", bce.removed);
+                }
+            }
+            if (hoisting) {
+                stats.start("licm");
+                Optimize.Hoist licm = new Optimize.Hoist(
+                    new Optimize.BlockGraph(blocks), frame);
+                licm.run();
+                stats.stop();
+                stats.count("licm", licm.hoisted);
+            }
+            if (strengthReduction) {
+                stats.start("sr");
+                Optimize.Induction sr = new Optimize.Induction(
+                    new Optimize.BlockGraph(blocks), frame.wordSize());
+                sr.run();
+                stats.stop();
+                stats.count("sr", sr.reduced);
+            }
+            if (valueNumbering) {
+                stats.start("gvn");
+                Optimize.ValueNumbers gvn = new Optimize.ValueNumbers(
+                    new Optimize.BlockGraph(blocks), frame);
+                gvn.run();
+                stats.stop();
+                stats.count("gvn", gvn.reused);
+            }
+            if (dump("blocks")) {
+                dbg.println("# Basic Blocks:");
+                for (LinkedList<Tree.Stm> b : blocks.list)
+                    new Tree.Print(dbg, b);
+            }
 
-            dbg.println("# Trace Scheduled:");
+            stats.start("trace");
             new Canon.TraceSchedule(blocks, traced);
-            new Tree.Print(dbg, traced);
+            stats.stop();
+            if (dump("trace")) {
+                dbg.println("# Trace Scheduled:");
+                new Tree.Print(dbg, traced);
+            }
         }
-        dbg.println("# With procedure entry/exit:");
+        stats.start("codegen");
         frame.procEntryExit1(traced);
-        new Tree.Print(dbg, traced);
-        dbg.println("# Instructions:");
         Frame.CodeGen cg = frame.codegen();
         for (Tree.Stm s : traced)
             s.accept(cg);
         LinkedList<Assem.Instr> insns = cg.insns();
+        stats.stop();
+        if (dump("trace")) {
+            dbg.println("# With procedure entry/exit:");
+            new Tree.Print(dbg, traced);
+        }
         Temp.Map map = new Temp.Map.Default();
-        for (Assem.Instr i : insns) {
-            dbg.print(i.format(map));
-            dbg.print("\t# ");
-            for (Temp d : i.def)
-                dbg.print(d + " ");
-            dbg.print((i instanceof Assem.Instr.MOVE) ? ":= " : "<- ");
-            for (Temp u : i.use)
-                dbg.print(u + " ");
-            if (i.jumps.length > 0) {
-                dbg.print(": goto ");
-                for (Temp.Label l : i.jumps)
-                    dbg.print(l + " ");
-            }
-            dbg.println();
+        if (dump("insns")) {
+            dbg.println("# Instructions:");
+            for (Assem.Instr i : insns) {
+                dbg.print(i.format(map));
+                dbg.print("\t# ");
+                for (Temp d : i.def)
+                    dbg.print(d + " ");
+                dbg.print((i instanceof Assem.Instr.MOVE) ? ":= " : "<- ");
+                for (Temp u : i.use)
+                    dbg.print(u + " ");
+                if (i.jumps.length > 0) {
+                    dbg.print(": goto ");
+                    for (Temp.Label l : i.jumps)
+                        dbg.print(l + " ");
+                }
+                dbg.println();
+            }
+            dbg.flush();
         }
-        dbg.flush();
         frame.procEntryExit2(insns);
-        map = new RegAlloc.RegAlloc(frame, insns, dbg);
-        dbg.println("# Assembly code:");
+        map = new RegAlloc.RegAlloc(frame, insns, dbg, stats);
+        stats.start("emit");
         frame.procEntryExit3(insns, map);
-        for (Assem.Instr i : insns) {
-            String insn = i.format(map);
-            out.println(insn);
-            dbg.println(insn);
+        // format the whole procedure into one buffer and write it at once
+        StringBuilder asm = new StringBuilder(insns.size() * 24);
+        for (Assem.Instr i : insns)
+            i.format(map, asm).append('\n');
+        out.append(asm);
+        stats.stop();
+        if (dump("asm")) {
+            dbg.println("# Assembly code:");
+            dbg.append(asm);
+        }
+        if (verbose) {
+            dbg.println("END " + frame.name);
+            dbg.flush();
         }
-        out.flush();
-        dbg.flush();
-        dbg.println("END " + frame.name);
-        dbg.flush();
+        Temp.Label.end();
     }
 
     public static boolean useFP = false;
-    public static boolean verbose = true;
+    public static boolean verbose = false;
     public static boolean spilling = true;
     public static boolean coalescing = true;
+    public static boolean tailCalls = true;
+    public static boolean inlining = true;
+    public static boolean devirtualizing = true;
+    public static boolean folding = true;
+    public static boolean nullChecks = true;
+    public static boolean boundsChecks = true;
+    public static boolean hoisting = true;
+    public static boolean strengthReduction = true;
+    public static boolean valueNumbering = true;
+    public static boolean bitLiveness = true;
+    public static boolean incremental = true;
+    public static boolean shareSlots = true;
+    public static boolean rematerialize = true;
+    public static boolean localSpills = true;
+    public static String stats = null;
+    public static int jobs = 1;
+
+    /**
+     * The debug dumps that can be selected with -dump, in the order they
+     * are printed.  -verbose selects them all.
+     */
+    static final String[] dumpNames =
+        { "canon", "blocks", "trace", "insns", "cfg", "ig", "alloc", "asm" };
+    static Set<String> dumps = new HashSet<String>();
+
+    static boolean dump(String name) {
+        return dumps.contains(name);
+    }
 
     private static void usage() {
         String usage =
             "Usage: java Main.MiniJava [-useFP|-nouseFP]"
             + "[-target=[Mips|PPCDarwin|PPCLinux]]"
             + "[-quiet|-verbose]"
+            + "[-dump=canon,blocks,trace,insns,cfg,ig,alloc,asm]"
             + "[-spill|-nospill] [-coalesce|-nocoalesce]"
+            + "[-devirt|-nodevirt] [-tce|-notce] [-inline|-noinline] [-fold|-nofold] [-nce|-nonce] [-bce|-nobce]"
+            + "[-licm|-nolicm] [-sr|-nosr] [-gvn|-nogvn]"
+            + "[-liveness=[bits|sets]] [-incremental|-noincremental] [-slots|-noslots] [-remat|-noremat] [-localspill|-nolocalspill]"
+            + "[-stats[=json|csv]]"
+            + "[-jobs=N]"
             + "<source>.java";
         throw new Error(usage);
     }
 
     static String mainClass;
 
+    /**
+     * Run the back end for each procedure as a separate task on a pool of
+     * jobs threads.  Each task writes its assembly and debug output to its
+     * own buffers, which are copied out in fragment order.
+     */
+    private static void emitParallel(List<Frag> frags) {
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        ArrayList<Future<String[]>> results = new ArrayList<Future<String[]>>();
+        for (Frag f : frags) {
+            if (!(f instanceof Frag.Proc)) {
+                results.add(null);
+                continue;
+            }
+            final int index = results.size();
+            final Frag.Proc p = (Frag.Proc) f;
+            final Stats.Stats s = new Stats.Stats(p.frame.name.toString());
+            results.add(pool.submit(new Callable<String[]>() {
+                public String[] call() {
+                    StringWriter o = new StringWriter();
+                    StringWriter d = verbose ? new StringWriter() : null;
+                    emitProc(p, index, new PrintWriter(o),
+                             (d != null) ? new PrintWriter(d)
+                                 : new PrintWriter(new NullOutputStream()), s);
+                    return new String[] { o.toString(),
+                                          (d != null) ? d.toString() : "" };
+                }
+            }));
+        }
+        pool.shutdown();
+        try {
+            Iterator<Future<String[]>> r = results.iterator();
+            for (Frag f : frags) {
+                Future<String[]> result = r.next();
+                if (result == null) {
+                    if (dump("asm"))
+                        dbg.println(f);
+                    out.println(f);
+                    continue;
+                }
+                String[] text = result.get();
+                out.print(text[0]);
+                dbg.print(text[1]);
+                dbg.flush();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new Error(e);
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new Error(cause);
+        }
+    }
+
     public static void main(String[] args) throws java.io.IOException {
+        Temp.reset();
         Frame target = new Mips.Frame();
         boolean main = false;
         if (args.length < 1) usage();
@@ -101,8 +282,15 @@ public class Main {
                     main = true;
                 else if (arg.equals("-useFP")) useFP = true;
                 else if (arg.equals("-nouseFP")) useFP = false;
-                else if (arg.equals("-quiet")) verbose = false;
-                else if (arg.equals("-verbose")) verbose = true;
+                else if (arg.equals("-quiet")) dumps.clear();
+                else if (arg.equals("-verbose"))
+                    dumps.addAll(Arrays.asList(dumpNames));
+                else if (arg.startsWith("-dump=")) {
+                    for (String d : arg.substring(6).split(",")) {
+                        if (!Arrays.asList(dumpNames).contains(d)) usage();
+                        dumps.add(d);
+                    }
+                }
                 else if (arg.equals("-target=Mips"))
                     target = new Mips.Frame();
                 else if (arg.equals("-target=PPCDarwin"))
@@ -115,32 +303,124 @@ public class Main {
                 else if (arg.equals("-nospill")) spilling = false;
                 else if (arg.equals("-coalesce")) coalescing = true;
                 else if (arg.equals("-nocoalesce")) coalescing = false;
+                else if (arg.equals("-devirt")) devirtualizing = true;
+                else if (arg.equals("-nodevirt")) devirtualizing = false;
+                else if (arg.equals("-tce")) tailCalls = true;
+                else if (arg.equals("-notce")) tailCalls = false;
+                else if (arg.equals("-inline")) inlining = true;
+                else if (arg.equals("-noinline")) inlining = false;
+                else if (arg.equals("-fold")) folding = true;
+                else if (arg.equals("-nofold")) folding = false;
+                else if (arg.equals("-nce")) nullChecks = true;
+                else if (arg.equals("-nonce")) nullChecks = false;
+                else if (arg.equals("-bce")) boundsChecks = true;
+                else if (arg.equals("-nobce")) boundsChecks = false;
+                else if (arg.equals("-licm")) hoisting = true;
+                else if (arg.equals("-nolicm")) hoisting = false;
+                else if (arg.equals("-sr")) strengthReduction = true;
+                else if (arg.equals("-nosr")) strengthReduction = false;
+                else if (arg.equals("-gvn")) valueNumbering = true;
+                else if (arg.equals("-nogvn")) valueNumbering = false;
+                else if (arg.equals("-liveness=bits")) bitLiveness = true;
+                else if (arg.equals("-liveness=sets")) bitLiveness = false;
+                else if (arg.equals("-incremental")) incremental = true;
+                else if (arg.equals("-noincremental")) incremental = false;
+                else if (arg.equals("-slots")) shareSlots = true;
+                else if (arg.equals("-noslots")) shareSlots = false;
+                else if (arg.equals("-remat")) rematerialize = true;
+                else if (arg.equals("-noremat")) rematerialize = false;
+                else if (arg.equals("-localspill")) localSpills = true;
+                else if (arg.equals("-nolocalspill")) localSpills = false;
+                else if (arg.equals("-stats")) stats = "json";
+                else if (arg.equals("-stats=json")) stats = "json";
+                else if (arg.equals("-stats=csv")) stats = "csv";
+                else if (arg.startsWith("-jobs=")) {
+                    try {
+                        jobs = Integer.parseInt(arg.substring(6));
+                    } catch (NumberFormatException e) {
+                        usage();
+                    }
+                    if (jobs < 1) usage();
+                }
                 else if (arg.startsWith("-")) usage();
             }
         Translate.target = target;
+        // the registers of the target outlive this compilation
+        Temp.keep();
+        RegAlloc.RegAlloc.bitLiveness = bitLiveness;
+        RegAlloc.RegAlloc.incremental = incremental;
+        RegAlloc.RegAlloc.shareSlots = shareSlots;
+        RegAlloc.RegAlloc.rematerialize = rematerialize;
+        RegAlloc.RegAlloc.localSpills = localSpills;
+        Stats.Stats.enabled = stats != null;
+        verbose = !dumps.isEmpty();
+        RegAlloc.RegAlloc.dumpCFG = dump("cfg");
+        RegAlloc.RegAlloc.dumpIG = dump("ig");
+        RegAlloc.RegAlloc.dumpAlloc = dump("alloc");
         String src = args[args.length - 1];
         java.io.File file = new java.io.File(src);
 
         try {
+            Stats.Stats top = new Stats.Stats(file.getName());
+            top.start("typecheck");
             Value.Module module = Semant.TypeCheck(file);
+            top.stop();
             if (Semant.anyErrors) return;
+            top.start("translate");
+            Translate.devirtualize = devirtualizing;
             List<Frag> frags = Translate.Compile(module, main);
+            top.stop();
             if (Semant.anyErrors) return;
+            top.count("devirt", Translate.devirtualized);
+            if (tailCalls) {
+                top.start("tailcalls");
+                Optimize.TailCalls tce = new Optimize.TailCalls(frags);
+                tce.run();
+                top.stop();
+                top.count("tailcalls", tce.eliminated);
+            }
+            if (inlining) {
+                top.start("inline");
+                Optimize.Inline inline = new Optimize.Inline(frags);
+                inline.run();
+                top.stop();
+                top.count("inlined", inline.inlined);
+            }
             String dst = module.name + ".s";
-            out = new PrintWriter(new FileOutputStream(dst));
+            out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(dst)), 1 << 16));
             dbg =
                 (verbose) ? new PrintWriter(System.out)
                     : new PrintWriter(new NullOutputStream());
-            for (Frag f : frags) {
-                if (f instanceof Frag.Proc)
-                    emitProc((Frag.Proc) f);
-                else {
-                    dbg.println(f);
-                    dbg.flush();
-                    out.println(f);
+            if (jobs > 1)
+                emitParallel(frags);
+            else {
+                int index = 0;
+                for (Frag f : frags) {
+                    if (f instanceof Frag.Proc) {
+                        Frame frame = ((Frag.Proc) f).frame;
+                        emitProc((Frag.Proc) f, index, out, dbg,
+                                 new Stats.Stats(frame.name.toString()));
+                    } else {
+                        if (dump("asm")) {
+                            dbg.println(f);
+                            dbg.flush();
+                        }
+                        out.println(f);
+                    }
+                    index++;
                 }
             }
             out.close();
+            if (stats != null) {
+                PrintWriter s =
+                    new PrintWriter(new FileOutputStream(module.name + ".stats." + stats));
+                if (stats.equals("csv"))
+                    Stats.Stats.csv(s);
+                else
+                    Stats.Stats.json(s);
+                s.close();
+            }
         } catch (ParseException e) {
             System.err.println(e.getMessage());
             return;
@@ -54,12 +54,33 @@ class Translate {
     static final Map<ProcBody,Frame> frames = new HashMap<ProcBody,Frame>();
     static LinkedList<Frag> frags = new LinkedList<Frag>();
 
+    /**
+     * Forget what an earlier compilation in this process translated: its
+     * fragments, frames, variable accesses and temps belong to it, and
+     * temp ids restart with each compilation (see Temp.reset).
+     */
+    static void reset() {
+        frames.clear();
+        frags = new LinkedList<Frag>();
+        accesses.clear();
+        compiled.clear();
+        temps.clear();
+        strings.clear();
+        devirtualized = 0;
+    }
+
     static List<Frag> Compile(final Value.Module m, boolean main) {
+        reset();
         String bodyName = m.name + (m.isInterface ? "_I3" : "_M3");
         Frame f = frames.put(m.body, target.newFrame(bodyName));
         assert f == null;
         Scope zz = Scope.Push(m.locals);
         for (Type t : m.types) Compile(t);
+        objects.clear();
+        closed.clear();
+        CollectObjects(m, new HashSet<Value.Module>());
+        for (Type t : m.types)
+            if (Type.Object.Is(t) != null) closed.add(t);
         // declare my imports, exports and local variables
         for (Value.External.Port p : m.externals.imports.values()) {
             EnterScope(p.module.locals);
@@ -99,7 +120,9 @@ class Translate {
                 }
                 stm = SEQ(stm, LABEL(returnLabel));
                 Scope.Pop(zz);
-                frags.add(new Frag.Proc(stm, frames.get(currentBody)));
+                Frag.Proc frag = new Frag.Proc(stm, frames.get(currentBody));
+                frag.inline = v.inline || (v.intf_peer != null && v.intf_peer.inline);
+                frags.add(frag);
             }
             public void visit(Value.Variable v) { assert false; }
             public void visit(Value.Constant v) { assert false; }
@@ -980,6 +1003,116 @@ class Translate {
             return null;
         return Value.Procedure.Is(v);
     }
+
+    /**
+     * Rewrite method calls that class hierarchy analysis shows always reach
+     * the same procedure into direct calls.
+     */
+    static boolean devirtualize = true;
+    static int devirtualized = 0;
+    // the object types of the module and of the interfaces it depends on
+    static final List<Type.Object> objects = new LinkedList<Type.Object>();
+    // those declared in the module itself, which no other module can extend
+    static final Set<Type> closed = new HashSet<Type>();
+
+    static void CollectObjects(Value.Module m, Set<Value.Module> seen) {
+        if (m == null || !seen.add(m)) return;
+        for (Type t : m.types) {
+            Type.Object o = Type.Object.Is(t);
+            if (o != null) objects.add(o);
+        }
+        for (Value.External.Port p : m.externals.imports.values())
+            CollectObjects(p.module, seen);
+        for (Value.External.Port p : m.externals.exports.values())
+            CollectObjects(p.module, seen);
+    }
+
+    /**
+     * The procedure bound to the method at offset in the method suite of
+     * t, or null if the method has no default.
+     */
+    static Value.Procedure MethodAt(Type.Object t, int offset) {
+        for (; t != null; t = Type.Object.Is(t.parent))
+            for (Value v : Scope.ToList(t.methods)) {
+                Value.Method m = Value.Method.Is(v);
+                if (m.offset != offset) continue;
+                if (m.value == null) return null;
+                Value.Procedure p = Value.Procedure.Is(m.value);
+                if (p != null && p.impl_peer != null) p = p.impl_peer;
+                return p;
+            }
+        return null;
+    }
+
+    /**
+     * The procedure every object of type t or one of its subtypes binds to
+     * method m, or null if they do not all bind the same one.
+     */
+    static Value.Procedure Monomorphic(Type.Object t, Value.Method m) {
+        Value.Procedure impl = null;
+        for (Type.Object s : objects) {
+            if (!Type.IsSubtype(s, t)) continue;
+            Value.Procedure p = MethodAt(s, m.offset);
+            if (p == null || (impl != null && p != impl)) return null;
+            impl = p;
+        }
+        return impl;
+    }
+
+    /**
+     * A direct call for the method call exp(fp, args), where exp loads the
+     * method from the suite of the receiver in temp, or null if the call
+     * cannot be devirtualized.  The direct call no longer dereferences the
+     * receiver, so it is null checked explicitly.  If t is declared in an
+     * interface, other modules may override the method in subtypes we
+     * cannot see: the direct call is then taken only for receivers whose
+     * method suite is t's, and any other receiver dispatches as before.
+     */
+    static Tree.Exp Devirtualize(Absyn.Expr proc, Tree.Exp exp, Temp temp, Tree.Exp fp, List<Tree.Exp> args) {
+        if (!devirtualize || !(proc instanceof Absyn.Expr.Qualify)) return null;
+        if (!(exp instanceof Tree.Exp.ESEQ)) return null;
+        Type.Object t = Type.Object.Is(((Absyn.Expr.Qualify)proc).expr.type);
+        Value.Method m = Value.Method.Is(QualifyExpr.Split(proc));
+        if (t == null || m == null) return null;
+        Value.Procedure impl = Monomorphic(t, m);
+        if (impl == null) return null;
+        devirtualized++;
+        Tree.Stm receive = ((Tree.Exp.ESEQ)exp).stm;
+        if (closed.contains(t)) {
+            Temp.Label badPtr = target.badPtr();
+            Tree.Stm nullCheck = null;
+            if (badPtr != null) {
+                Temp.Label okPtr = new Temp.Label();
+                nullCheck = SEQ(BEQ(TEMP(temp), CONST(0), badPtr, okPtr), LABEL(okPtr));
+            }
+            return CALL(ESEQ(SEQ(receive, nullCheck), Load(impl)), fp, args.toArray(new Tree.Exp[args.size()]));
+        }
+        Compile(t);
+        int w = target.wordSize();
+        Temp vt = new Temp(), r = new Temp();
+        Tree.Stm stm = SEQ(receive, MOVE(TEMP(vt), MEM(TEMP(temp), -w)));
+        Tree.Exp[] a = new Tree.Exp[args.size()];
+        Tree.Exp[] b = new Tree.Exp[args.size()];
+        a[0] = TEMP(temp);
+        b[0] = TEMP(temp);
+        for (int i = 1; i < a.length; i++) {
+            Temp x = new Temp();
+            stm = SEQ(stm, MOVE(TEMP(x), args.get(i)));
+            a[i] = TEMP(x);
+            b[i] = TEMP(x);
+        }
+        Temp.Label yes = new Temp.Label(), no = new Temp.Label(), join = new Temp.Label();
+        stm = SEQ(stm,
+                  BEQ(TEMP(vt), NAME(Temp.getLabel(Type.GlobalUID(t))), yes, no),
+                  LABEL(yes),
+                  MOVE(TEMP(r), CALL(Load(impl), fp, a)),
+                  JUMP(join),
+                  LABEL(no),
+                  MOVE(TEMP(r), CALL(MEM(TEMP(vt), m.offset * w), fp, b)),
+                  LABEL(join));
+        return ESEQ(stm, TEMP(r));
+    }
+
     static Exp Compile(Absyn.Expr e) {
         class Visitor implements Absyn.Expr.Visitor<Exp> {
             @Override
@@ -1132,6 +1265,10 @@ class Translate {
                         return null;
                     }
                 }
+                if (t != null) {
+                    Tree.Exp direct = Devirtualize(proc, exp, t, fp, args);
+                    if (direct != null) return new Exp.Ex(direct);
+                }
                 return new Exp.Ex(CALL(exp, fp, args.toArray(new Tree.Exp[args.size()])));
             }
             @Override
@@ -783,11 +783,13 @@ abstract class Value {
         ProcBody body;
         Procedure intf_peer, impl_peer;
         Type.Proc signature;
+        boolean inline = false; // declared <*INLINE*>
 
         Procedure(Absyn.Decl.Procedure decl, Type.Proc type) {
             super(decl.name);
             this.decl = decl;
             this.signature = type;
+            inline = decl.inline != null;
             external = decl.external != null;
             if (external) {
                 extName = decl.external.image;
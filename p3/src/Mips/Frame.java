@@ -174,71 +174,76 @@ public class Frame extends Translate.Frame {
 
     public String string(Label lab, String string) {
         int length = string.length();
-        String lit = "";
+        StringBuilder lit = new StringBuilder(length + 32);
+        lit.append("\t.data\n\t.align 2\n").append(lab).append(":\t.asciiz\t\"");
         for (int i = 0; i < length; i++) {
             char c = string.charAt(i);
             switch (c) {
             case '\b':
-                lit += "\\b";
+                lit.append("\\b");
                 break;
             case '\t':
-                lit += "\\t";
+                lit.append("\\t");
                 break;
             case '\n':
-                lit += "\\n";
+                lit.append("\\n");
                 break;
             case '\f':
-                lit += "\\f";
+                lit.append("\\f");
                 break;
             case '\r':
-                lit += "\\r";
+                lit.append("\\r");
                 break;
             case '\"':
-                lit += "\\\"";
+                lit.append("\\\"");
                 break;
             case '\\':
-                lit += "\\\\";
+                lit.append("\\\\");
                 break;
             default:
                 if (c < ' ' || c > '~') {
                     int v = (int) c;
-                    lit += "\\" + ((v >> 6) & 7) + ((v >> 3) & 7) + (v & 7);
+                    lit.append('\\').append((v >> 6) & 7).append((v >> 3) & 7)
+                        .append(v & 7);
                 } else
-                    lit += c;
+                    lit.append(c);
                 break;
             }
         }
-        return "\t.data\n\t.align 2\n" + lab + ":\t.asciiz\t\"" + lit + "\"";
+        return lit.append('"').toString();
     }
 
     public String record(Label lab, int words) {
-        String result = "\t.data\n\t.align 2\n" + lab + ":";
+        StringBuilder result = new StringBuilder(32 + words * 10);
+        result.append("\t.data\n\t.align 2\n").append(lab).append(':');
         while (--words >= 0)
-            result += "\n\t.word 0";
-        return result;
+            result.append("\n\t.word 0");
+        return result.toString();
     }
 
     public String vtable(Label lab, Collection<Label> values) {
-        String result = "\t.data\n\t.align 2\n" + lab + ":";
+        StringBuilder result = new StringBuilder(32 + values.size() * 16);
+        result.append("\t.data\n\t.align 2\n").append(lab).append(':');
         for (Label l : values) {
-            result += "\n\t.word ";
+            result.append("\n\t.word ");
             if (l == null)
-                result += "0";
+                result.append('0');
             else
-                result += l;
+                result.append(l);
         }
-        return result;
+        return result.toString();
     }
 
     public String switchtable(Label lab,
 			      int[] values,
 			      Label[] labels) {
-        String result = "\t.data\n\t.align 2\n" + lab + ":";
+        StringBuilder result = new StringBuilder(32 + values.length * 32);
+        result.append("\t.data\n\t.align 2\n").append(lab).append(':');
 	for (int i = 0; i < values.length; i++) {
-            result += "\n\t.word " + values[i];
-            result += "\n\t.word " + labels[i];
+            result.append("\n\t.word ").append(values[i]);
+            result.append("\n\t.word ").append(labels[i]);
 	}
-        return result;
+        return result.toString();
     }
 
     private static final Label badPtr = Temp.getLabel("_BADPTR");
@@ -297,6 +302,32 @@ public class Frame extends Translate.Frame {
         return new Codegen(this);
     }
 
+    public List<Assem.Instr> load(Access a, Temp t) {
+        if (!(a instanceof InFrame))
+            return super.load(a, t);
+        int offset = ((InFrame) a).offset;
+        return Collections.<Assem.Instr>singletonList(
+            OPER("\tlw `d0 " + offset + "+" + name + ".framesize(`s0)",
+                 T(t), T(SP)));
+    }
+
+    public List<Assem.Instr> store(Access a, Temp t) {
+        if (!(a instanceof InFrame))
+            return super.store(a, t);
+        int offset = ((InFrame) a).offset;
+        return Collections.<Assem.Instr>singletonList(
+            OPER("\tsw `s0 " + offset + "+" + name + ".framesize(`s1)",
+                 T(), T(t, SP)));
+    }
+
+    public boolean rematerializable(Assem.Instr i) {
+        if (!(i instanceof Assem.Instr.OPER) || i.def.length != 1
+            || i.use.length != 0 || i.jumps.length != 0)
+            return false;
+        // constants and addresses; a load from a label reads memory
+        return i.assem.startsWith("\tli ") || i.assem.startsWith("\tla ");
+    }
+
     // Registers live on return
     private Temp[] returnSink = specialRegs;
     public void procEntryExit2(LinkedList<Assem.Instr> insns) {
@@ -310,9 +341,25 @@ public class Frame extends Translate.Frame {
         insns.addLast(OPER("#\treturnSink", T(), returnSink));
     }
 
+    /**
+     * Lay out the frame and add the prologue and epilogue.  A procedure
+     * that makes no calls (perhaps because they were all inlined) has no
+     * outgoing argument area, and one that then needs no locals, spill
+     * slots or callee-save registers gets no frame at all.  The frame
+     * pointer is virtual: frame accesses are offsets from $sp, so it is
+     * never saved.  Otherwise the frame is shrink-wrapped: it is set up
+     * where it is first needed rather than on entry, if control can reach
+     * the return without passing there, and torn down only on the exits
+     * from that point.
+     */
     public void procEntryExit3(LinkedList<Assem.Instr> insns, Temp.Map map) {
+        HashSet<Temp> defs = new HashSet<Temp>();
+        for (Assem.Instr insn : insns) {
+            for (Temp t : insn.def)
+                defs.add(map.get(t));
+        }
         int framesize = 0;
-        if (maxArgsOut >= 0) {
+        if (maxArgsOut >= 0 && defs.contains(RA)) {
             // non-leaf
             if (maxArgsOut < argRegs.length)
                 maxArgsOut = argRegs.length;
@@ -320,33 +367,205 @@ public class Frame extends Translate.Frame {
         }
         framesize += numLocals * wordSize;
 
-        HashSet<Temp> defs = new HashSet<Temp>();
-        for (Assem.Instr insn : insns) {
-            for (Temp t : insn.def)
-                defs.add(map.get(t));
-        }
+        LinkedList<Temp> saved = new LinkedList<Temp>();
         for (Temp t : calleeSaves)
-            if (defs.contains(t))
+            if (defs.contains(t)) {
+                saved.add(t);
                 framesize += wordSize;
+            }
+        LinkedList<Assem.Instr> prologue = new LinkedList<Assem.Instr>();
+        LinkedList<Assem.Instr> epilogue = new LinkedList<Assem.Instr>();
         if (framesize != 0) {
-            insns.addFirst(OPER("\tsubu $sp " + name + ".framesize", T(SP),
-                                T(SP)));
-            insns.addLast(OPER("\taddu $sp " + name + ".framesize", T(SP),
-                               T(SP)));
+            prologue.addFirst(OPER("\tsubu $sp " + name + ".framesize", T(SP),
+                                   T(SP)));
+            epilogue.addLast(OPER("\taddu $sp " + name + ".framesize", T(SP),
+                                  T(SP)));
         }
 
         int o = -numLocals * wordSize;
-        for (Temp t : calleeSaves)
-            if (defs.contains(t)) {
-                o -= wordSize;
-                insns.addFirst(OPER("\tsw `s0 " + o + "($sp)", T(), T(t, SP)));
-                insns.addLast(OPER("\tlw `d0 " + o + "($sp)", T(t), T(SP)));
-            }
+        for (Temp t : saved) {
+            o -= wordSize;
+            prologue.addFirst(OPER("\tsw `s0 " + o + "($sp)", T(), T(t, SP)));
+            epilogue.addLast(OPER("\tlw `d0 " + o + "($sp)", T(t), T(SP)));
+        }
 
+        LinkedList<Assem.Instr> bare = new LinkedList<Assem.Instr>();
+        if (!prologue.isEmpty())
+            bare = shrinkWrap(insns, map, saved, prologue);
+        insns.addAll(epilogue);
         insns.addLast(OPER("\tjr $ra", T(), returnSink));
+        insns.addAll(bare);
         insns.addFirst(OPER("\t.text\n" + name + ":\n" + name
             + ".framesize=" + framesize));
         if (isGlobal)
             insns.addFirst(OPER("\t.globl " + name));
     }
+
+    /**
+     * The instructions of a procedure, and where each block of their flow
+     * graph starts among them.
+     */
+    private static class Blocks {
+        final FlowGraph.AssemFlowGraph flow;
+        final FlowGraph.AssemNode[] node;
+        final int[] start;
+        final Assem.Instr[] insns;
+
+        Blocks(Frame frame, LinkedList<Assem.Instr> list) {
+            insns = list.toArray(new Assem.Instr[list.size()]);
+            flow = new FlowGraph.AssemFlowGraph(frame, list);
+            int n = flow.size();
+            node = new FlowGraph.AssemNode[n];
+            for (FlowGraph.AssemNode b : flow.nodes())
+                node[b.index()] = b;
+            // a block is keyed by its first instruction
+            start = new int[n];
+            for (int i = 0, b = 0; i < insns.length; i++)
+                if (flow.get(insns[i]) != null)
+                    start[b++] = i;
+        }
+
+        int size() {
+            return start.length;
+        }
+
+        int end(int b) {
+            return (b + 1 < start.length) ? start[b + 1] : insns.length;
+        }
+
+        private static boolean unconditional(Assem.Instr i) {
+            if (i.jumps.length == 0)
+                return false;
+            String a = i.assem.trim();
+            return a.startsWith("b ") || a.startsWith("j ") || a.startsWith("jr ");
+        }
+
+        /**
+         * The blocks reachable from b without passing through x.
+         */
+        BitSet reach(int b, int x) {
+            BitSet r = new BitSet(size());
+            LinkedList<Integer> work = new LinkedList<Integer>();
+            work.add(b);
+            while (!work.isEmpty())
+                for (FlowGraph.AssemNode s : node[work.removeFirst()].succs) {
+                    int t = s.index();
+                    if (t != x && !r.get(t)) {
+                        r.set(t);
+                        work.add(t);
+                    }
+                }
+            return r;
+        }
+    }
+
+    /**
+     * Insert the prologue into insns where the frame is first needed, and
+     * return the code for an exit that bypasses it (empty if none does).
+     * The frame is needed by instructions that address it, make calls, or
+     * use saved registers.  It is set up at the nearest block dominating
+     * all of them that is in no loop and from which control cannot reach
+     * a block it does not dominate except through the exit block; the exit
+     * block is the return label and returnSink of procEntryExit2, and the
+     * paths into it from outside that region go to a copy with no
+     * epilogue instead.
+     */
+    private LinkedList<Assem.Instr> shrinkWrap(LinkedList<Assem.Instr> insns,
+            Temp.Map map, Collection<Temp> saved, List<Assem.Instr> prologue) {
+        LinkedList<Assem.Instr> bare = new LinkedList<Assem.Instr>();
+        Blocks g = new Blocks(this, insns);
+        int n = g.size();
+        int x = n - 1;
+        HashSet<Label> ret = new HashSet<Label>();
+        for (int i = g.start[x]; i < g.insns.length - 1; i++) {
+            Assem.Instr insn = g.insns[i];
+            if (!(insn instanceof Assem.Instr.LABEL)) {
+                ret.clear();
+                break;
+            }
+            ret.add(((Assem.Instr.LABEL) insn).label);
+        }
+        BitSet needs = new BitSet(n);
+        for (int b = 0; b < x; b++)
+            for (int i = g.start[b]; i < g.end(b); i++)
+                if (needsFrame(g.insns[i], map, saved))
+                    needs.set(b);
+        FlowGraph.AssemNode entry = g.node[0];
+        FlowGraph.AssemNode d = null;
+        BitSet region = null;
+        if (!ret.isEmpty() && g.start[x] > 0 && !needs.isEmpty()) {
+            Graph.Dominators<Assem.Instr, FlowGraph.AssemNode> dom =
+                new Graph.Dominators<Assem.Instr, FlowGraph.AssemNode>(g.flow, entry);
+            // the nearest common dominator of the blocks that need a frame
+            for (int b = needs.nextSetBit(0); b >= 0; b = needs.nextSetBit(b + 1))
+                if (dom.reachable(g.node[b]))
+                    d = (d == null) ? g.node[b] : dom.nearest(d, g.node[b]);
+            for (; d != null && d != entry; d = dom.idom(d)) {
+                region = g.reach(d.index(), x);
+                if (region.get(d.index()))
+                    continue;       // in a loop
+                boolean closed = true;
+                for (int b = region.nextSetBit(0); b >= 0; b = region.nextSetBit(b + 1))
+                    closed &= dom.dominates(d, g.node[b]);
+                if (closed)
+                    break;
+            }
+        }
+        if (d == null || d == entry) {
+            insns.addAll(0, prologue);
+            return bare;
+        }
+        region.set(d.index());
+        BitSet bypass = new BitSet(n);
+        for (FlowGraph.AssemNode p : g.node[x].preds)
+            if (!region.get(p.index()))
+                bypass.set(p.index());
+        if (bypass.isEmpty()) {
+            insns.addAll(0, prologue);
+            return bare;
+        }
+        // the frame is set up in d, after its labels
+        int at = g.start[d.index()];
+        while (g.insns[at] instanceof Assem.Instr.LABEL)
+            at++;
+        Label exit = new Label();
+        Assem.Instr fix = null;
+        for (int b = bypass.nextSetBit(0); b >= 0; b = bypass.nextSetBit(b + 1)) {
+            Assem.Instr last = g.insns[g.end(b) - 1];
+            for (int j = 0; j < last.jumps.length; j++)
+                if (ret.contains(last.jumps[j]))
+                    last.jumps[j] = exit;
+            if (b == x - 1 && !Blocks.unconditional(last))
+                fix = new Assem.Instr.OPER("\tb `j0", T(), T(), exit);
+        }
+        insns.clear();
+        for (int i = 0; i < g.insns.length; i++) {
+            if (i == at)
+                insns.addAll(prologue);
+            // a fall through into the exit that bypasses the frame
+            if (i == g.start[x] && fix != null)
+                insns.add(fix);
+            insns.add(g.insns[i]);
+        }
+        bare.add(new Assem.Instr.LABEL(exit + ":", exit));
+        bare.add(OPER("\tjr $ra", T(), returnSink));
+        return bare;
+    }
+
+    private static boolean needsFrame(Assem.Instr insn, Temp.Map map,
+                                      Collection<Temp> saved) {
+        if (insn.assem.indexOf(".framesize") >= 0)
+            return true;
+        for (Temp t : insn.def) {
+            Temp r = map.get(t);
+            if (r == SP || r == RA || saved.contains(r))
+                return true;
+        }
+        for (Temp t : insn.use) {
+            Temp r = map.get(t);
+            if (r == SP || saved.contains(r))
+                return true;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,41 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.LinkedList;
+import Translate.Temp.Label;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * A basic block: a LABEL, straight-line statements, and (except for the
+ * final block) a JUMP or CJUMP.
+ */
+public class Block extends Graph.Node<Label, Block> {
+    public final LinkedList<Stm> stms;
+
+    Block(BlockGraph g, LinkedList<Stm> s) {
+        super(g, ((LABEL) s.getFirst()).label);
+        stms = s;
+    }
+
+    public Label label() {
+        return ((LABEL) stms.getFirst()).label;
+    }
+
+    /**
+     * The labels control may leave this block for.
+     */
+    public Label[] targets() {
+        Stm s = stms.getLast();
+        if (s instanceof JUMP)
+            return ((JUMP) s).targets;
+        if (s instanceof CJUMP)
+            return new Label[] { ((CJUMP) s).iftrue, ((CJUMP) s).iffalse };
+        return new Label[] {};
+    }
+
+    public String toString() {
+        return label().toString();
+    }
+}
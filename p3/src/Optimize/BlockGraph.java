@@ -0,0 +1,56 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.*;
+import Translate.Temp.Label;
+import Translate.Tree.Stm;
+
+/**
+ * The control flow graph over the basic blocks of a procedure.  The blocks
+ * are shared with the Canon.BasicBlocks they were built from, so rewriting
+ * a block's statements rewrites the procedure.
+ */
+public class BlockGraph extends Graph.Graph<Label, Block> {
+    public final Canon.BasicBlocks blocks;
+    public Block entry;
+
+    public BlockGraph(Canon.BasicBlocks b) {
+        blocks = b;
+        for (LinkedList<Stm> l : b.list)
+            new Block(this, l);
+        for (Block n : nodes())
+            for (Label l : n.targets()) {
+                Block s = get(l);
+                if (s != null)
+                    addEdge(n, s);
+            }
+        entry = b.list.isEmpty() ? null : nodes().iterator().next();
+    }
+
+    /**
+     * Add a block made of stms, placed just before the block before in the
+     * procedure, and taking its place as entry if need be.  Its edges are
+     * left to the caller.
+     */
+    public Block insert(LinkedList<Stm> stms, Block before) {
+        ListIterator<LinkedList<Stm>> i = blocks.list.listIterator();
+        while (i.hasNext())
+            if (i.next() == before.stms) {
+                i.previous();
+                break;
+            }
+        i.add(stms);
+        Block b = new Block(this, stms);
+        if (before == entry)
+            entry = b;
+        return b;
+    }
+
+    /**
+     * The blocks reachable from the entry, in reverse postorder.
+     */
+    public List<Block> reversePostorder() {
+        return reversePostorder(entry);
+    }
+}
@@ -0,0 +1,211 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.List;
+import Translate.Temp;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm.*;
+
+/**
+ * Subscript check elimination.
+ *
+ * Translate guards every subscript a[i] with BLT(i, 0, badSub) and
+ * BGE(i, MEM(a, -wordSize), badSub), the second comparing against the
+ * length word of the array.  This pass tracks which temps are known to be
+ * non-negative or below the length of some array, from constants, FOR
+ * loop bounds (index := from; BLE(index, LAST(a^)) ...; index := index +
+ * 1), and checks that have already passed, and removes the checks those
+ * facts discharge.  Array lengths never change, so facts about them
+ * survive stores and calls.  A LENGTH or BELOW fact about a temp that is
+ * not an array pointer is harmless: only an upper-bound check consults
+ * BELOW, and Translate emits those only against arrays.
+ */
+public class BoundsChecks extends CheckElim {
+    /**
+     * a >= 0
+     */
+    static final String NONNEG = "NONNEG";
+    /**
+     * a < length(b)
+     */
+    static final String BELOW = "BELOW";
+    /**
+     * a == length(b) + k
+     */
+    static final String LENGTH = "LENGTH";
+    /**
+     * a == k
+     */
+    static final String CONST = "CONST";
+
+    public BoundsChecks(BlockGraph g, Translate.Frame frame) {
+        super(g, frame.badSub(), frame.wordSize());
+    }
+
+    /**
+     * If e is the length word of an array, the temp holding the array.
+     */
+    private Temp length(Exp e, State s) {
+        if (e instanceof MEM) {
+            MEM m = (MEM) e;
+            if (m.exp instanceof TEMP && m.offset.value == -wordSize())
+                return s.rep(((TEMP) m.exp).temp);
+        }
+        return null;
+    }
+
+    private static Integer constant(Exp e, State s) {
+        if (e instanceof CONST)
+            return ((CONST) e).value;
+        if (e instanceof TEMP) {
+            Temp t = s.rep(((TEMP) e).temp);
+            for (Fact f : s.about(CONST, t))
+                return f.k;
+        }
+        return null;
+    }
+
+    private static boolean nonneg(Exp e, State s) {
+        Integer c = constant(e, s);
+        if (c != null)
+            return c >= 0;
+        return e instanceof TEMP && s.has(NONNEG, s.rep(((TEMP) e).temp), null, 0);
+    }
+
+    protected void gen(Temp t, Exp src, State s, List<Fact> facts) {
+        Integer c = constant(src, s);
+        if (c != null) {
+            facts.add(new Fact(CONST, t, null, c));
+            if (c >= 0)
+                facts.add(new Fact(NONNEG, t, null, 0));
+            return;
+        }
+        Temp a = length(src, s);
+        if (a != null) {
+            facts.add(new Fact(LENGTH, t, a, 0));
+            return;
+        }
+        if (!(src instanceof BINOP))
+            return;
+        BINOP b = (BINOP) src;
+        Exp l = b.left, r = b.right;
+        if (b.op == BINOP.Operator.ADD && l instanceof CONST) {
+            l = b.right;
+            r = b.left;
+        }
+        Integer k = constant(r, s);
+        if (k == null)
+            return;
+        Integer v = constant(l, s);
+        if (v != null) {
+            long x;
+            switch (b.op) {
+            case ADD: x = (long) v + k; break;
+            case SUB: x = (long) v - k; break;
+            case MUL: x = (long) v * k; break;
+            default: return;
+            }
+            if (x != (int) x)
+                return;
+            facts.add(new Fact(CONST, t, null, (int) x));
+            if (x >= 0)
+                facts.add(new Fact(NONNEG, t, null, 0));
+            return;
+        }
+        // LAST(a^) is length(a) - 1
+        a = length(l, s);
+        if (a != null && b.op == BINOP.Operator.SUB && k >= 0) {
+            facts.add(new Fact(LENGTH, t, a, -k));
+            return;
+        }
+        if (!(l instanceof TEMP))
+            return;
+        Temp x = s.rep(((TEMP) l).temp);
+        if (!s.has(NONNEG, x, null, 0))
+            return;
+        List<Fact> below = s.about(BELOW, x);
+        if (b.op == BINOP.Operator.ADD && k == 1 && !below.isEmpty()) {
+            // x < length(a) <= MAXINT, so x + 1 cannot overflow
+            facts.add(new Fact(NONNEG, t, null, 0));
+        } else if (b.op == BINOP.Operator.SUB && k >= 0) {
+            // 0 <= x, so x - k cannot underflow
+            for (Fact f : below)
+                facts.add(new Fact(BELOW, t, f.b, 0));
+        }
+    }
+
+    /**
+     * Record that left < right + d (d is 0 or 1).
+     */
+    private void less(Exp left, Exp right, int d, State s) {
+        if (!(left instanceof TEMP))
+            return;
+        Temp x = s.rep(((TEMP) left).temp);
+        Temp a = length(right, s);
+        if (a != null && d <= 0) {
+            s.add(BELOW, x, a, 0);
+            return;
+        }
+        if (right instanceof TEMP) {
+            Temp y = s.rep(((TEMP) right).temp);
+            for (Fact f : s.about(LENGTH, y))
+                if (f.k + d <= 0)
+                    s.add(BELOW, x, f.b, 0);
+        }
+    }
+
+    /**
+     * Record that left >= k.
+     */
+    private void atLeast(Exp left, int k, State s) {
+        if (k >= 0 && left instanceof TEMP)
+            s.add(NONNEG, s.rep(((TEMP) left).temp), null, 0);
+    }
+
+    protected void branch(CJUMP c, boolean taken, State s) {
+        CJUMP.Operator op = taken ? c.op : c.not().op;
+        Integer k = constant(c.right, s);
+        switch (op) {
+        case BLT:
+            less(c.left, c.right, 0, s);
+            break;
+        case BLE:
+            less(c.left, c.right, 1, s);
+            break;
+        case BGE:
+            if (k != null)
+                atLeast(c.left, k, s);
+            break;
+        case BGT:
+            if (k != null && k != Integer.MAX_VALUE)
+                atLeast(c.left, k + 1, s);
+            break;
+        default:
+            break;
+        }
+    }
+
+    protected boolean passes(CJUMP c, State s) {
+        switch (c.op) {
+        case BLT: {
+            // lower bound: BLT(i, 0, badSub)
+            Integer k = constant(c.right, s);
+            return k != null && k <= 0 && nonneg(c.left, s);
+        }
+        case BGE: {
+            // upper bound: BGE(i, MEM(a, -wordSize), badSub)
+            Integer i = constant(c.left, s);
+            Integer k = constant(c.right, s);
+            if (i != null && k != null)
+                return i < k;
+            Temp a = length(c.right, s);
+            return a != null && c.left instanceof TEMP
+                && s.has(BELOW, s.rep(((TEMP) c.left).temp), a, 0);
+        }
+        default:
+            return false;
+        }
+    }
+}
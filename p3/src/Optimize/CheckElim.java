@@ -0,0 +1,68 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.ListIterator;
+import Translate.Temp.Label;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * Removal of run-time checks that are known to pass.
+ *
+ * A check is a CJUMP whose true target is a trap label (badSub, badPtr).
+ * A check whose trap branch the facts show can never be taken is replaced
+ * by a JUMP to its false target.
+ *
+ * Subclasses say which facts each MOVE and each branch establishes, and
+ * which checks they can discharge.
+ */
+public abstract class CheckElim extends Facts {
+    private final Label trap;
+
+    /**
+     * Number of checks removed.
+     */
+    public int removed = 0;
+
+    /**
+     * @param trap  the label a check branches to when it fails, or null if
+     *              the target does not check
+     */
+    protected CheckElim(BlockGraph g, Label trap, int wordSize) {
+        super(g, wordSize);
+        this.trap = trap;
+    }
+
+    /**
+     * Is the check c known to pass in state s?
+     */
+    protected abstract boolean passes(CJUMP c, State s);
+
+    /**
+     * Run the analysis and rewrite the checks it discharges.
+     */
+    public void run() {
+        if (trap == null)
+            return;
+        analyze();
+        for (Block b : graph.reversePostorder())
+            rewrite(b, new State(in[b.index()]));
+    }
+
+    private void rewrite(Block b, State s) {
+        ListIterator<Stm> i = b.stms.listIterator();
+        while (i.hasNext()) {
+            Stm stm = i.next();
+            if (stm instanceof CJUMP) {
+                CJUMP c = (CJUMP) stm;
+                if (c.iftrue == trap && passes(c, s)) {
+                    i.set(new JUMP(c.iffalse));
+                    removed++;
+                }
+            }
+            step(stm, s);
+        }
+        // the graph loses the edge to the trap, which is not a block
+    }
+}
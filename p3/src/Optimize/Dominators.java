@@ -0,0 +1,14 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import Translate.Temp.Label;
+
+/**
+ * The dominator tree of a block graph from its entry block.
+ */
+public class Dominators extends Graph.Dominators<Label, Block> {
+    public Dominators(BlockGraph g) {
+        super(g, g.entry);
+    }
+}
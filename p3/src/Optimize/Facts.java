@@ -0,0 +1,409 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.*;
+import Translate.Temp;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * A forward must-analysis over the block graph that computes, at the
+ * start of each block, the facts that hold on every path reaching it.
+ * Facts are stated over representative temps: a temp that was copied
+ * from another (directly, or by reloading the same memory word with no
+ * intervening store or call) shares its representative's facts.
+ *
+ * Subclasses say which facts each MOVE and each branch establishes.
+ */
+public abstract class Facts {
+    /**
+     * A fact about one or two temps, with an optional integer.  LOAD facts
+     * describe the contents of memory and die at every store and call.
+     */
+    protected static final class Fact {
+        final String kind;
+        final Temp a, b;
+        final int k;
+
+        Fact(String kind, Temp a, Temp b, int k) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.k = k;
+        }
+
+        boolean mentions(Temp t) {
+            return a == t || b == t;
+        }
+
+        Fact rename(Temp from, Temp to) {
+            return new Fact(kind, a == from ? to : a, b == from ? to : b, k);
+        }
+
+        boolean memory() {
+            return kind == LOAD;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Fact))
+                return false;
+            Fact f = (Fact) o;
+            return kind == f.kind && a == f.a && b == f.b && k == f.k;
+        }
+
+        public int hashCode() {
+            return kind.hashCode() * 31 + a.hashCode()
+                + (b == null ? 0 : b.hashCode() * 17) + k;
+        }
+
+        public String toString() {
+            return kind + "(" + a + (b == null ? "" : ", " + b) + ", " + k + ")";
+        }
+    }
+
+    /**
+     * a == MEM(b + k)
+     */
+    protected static final String LOAD = "LOAD";
+
+    /**
+     * p is a heap pointer: not nil, and not into a frame or the globals.
+     * See heapGen and heapBranch.
+     */
+    protected static final String HEAP = "HEAP";
+
+    /**
+     * The facts holding at a program point.
+     */
+    protected static final class State {
+        // temp -> representative; representatives are not keys
+        final LinkedHashMap<Temp, Temp> copies;
+        final HashSet<Fact> facts;
+
+        State() {
+            copies = new LinkedHashMap<Temp, Temp>();
+            facts = new HashSet<Fact>();
+        }
+
+        State(State s) {
+            copies = new LinkedHashMap<Temp, Temp>(s.copies);
+            facts = new HashSet<Fact>(s.facts);
+        }
+
+        Temp rep(Temp t) {
+            Temp r = copies.get(t);
+            return r == null ? t : r;
+        }
+
+        boolean has(String kind, Temp a, Temp b, int k) {
+            return facts.contains(new Fact(kind, a, b, k));
+        }
+
+        void add(String kind, Temp a, Temp b, int k) {
+            facts.add(new Fact(kind, a, b, k));
+        }
+
+        /**
+         * Facts of the given kind about a.
+         */
+        List<Fact> about(String kind, Temp a) {
+            ArrayList<Fact> l = new ArrayList<Fact>();
+            for (Fact f : facts)
+                if (f.kind == kind && f.a == a)
+                    l.add(f);
+            return l;
+        }
+
+        /**
+         * Forget everything about the old value of t.  If other temps
+         * still hold that value, one of them takes over its facts.
+         */
+        void kill(Temp t) {
+            copies.remove(t);
+            Temp root = null;
+            for (Map.Entry<Temp, Temp> e : copies.entrySet())
+                if (e.getValue() == t) {
+                    if (root == null)
+                        root = e.getKey();
+                    else
+                        e.setValue(root);
+                }
+            if (root != null)
+                copies.remove(root);
+            ArrayList<Fact> renamed = new ArrayList<Fact>();
+            for (Iterator<Fact> i = facts.iterator(); i.hasNext();) {
+                Fact f = i.next();
+                if (f.mentions(t)) {
+                    i.remove();
+                    if (root != null)
+                        renamed.add(f.rename(t, root));
+                }
+            }
+            facts.addAll(renamed);
+        }
+
+        void killMemory() {
+            for (Iterator<Fact> i = facts.iterator(); i.hasNext();)
+                if (i.next().memory())
+                    i.remove();
+        }
+
+        /**
+         * Keep only what also holds in s.
+         */
+        void meet(State s) {
+            for (Iterator<Map.Entry<Temp, Temp>> i = copies.entrySet().iterator();
+                 i.hasNext();) {
+                Map.Entry<Temp, Temp> e = i.next();
+                if (s.copies.get(e.getKey()) != e.getValue())
+                    i.remove();
+            }
+            facts.retainAll(s.facts);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof State))
+                return false;
+            State s = (State) o;
+            return copies.equals(s.copies) && facts.equals(s.facts);
+        }
+
+        public int hashCode() {
+            return copies.hashCode() ^ facts.hashCode();
+        }
+    }
+
+    protected final BlockGraph graph;
+    private final int wordSize;
+    private final Temp.Label alloc = Temp.getLabel("new");
+
+    /**
+     * The facts holding on entry to each block, by block index; null for
+     * blocks the entry does not reach.  Set by analyze().
+     */
+    protected State[] in;
+
+    protected Facts(BlockGraph g, int wordSize) {
+        graph = g;
+        this.wordSize = wordSize;
+    }
+
+    /**
+     * Facts about temp t (not yet bound in s) that follow from t := src.
+     * Copies and loads are handled by the caller.
+     */
+    protected abstract void gen(Temp t, Exp src, State s, List<Fact> facts);
+
+    /**
+     * Add to s the facts that hold after the branch c goes the way taken.
+     */
+    protected abstract void branch(CJUMP c, boolean taken, State s);
+
+    /**
+     * Add to s the facts that hold once e has been evaluated without
+     * trapping.  Called before the value of e is assigned anywhere.
+     */
+    protected void evaluated(Exp e, State s) {
+    }
+
+    protected int wordSize() {
+        return wordSize;
+    }
+
+    /**
+     * The HEAP fact of t := src: t is a heap pointer if src is a call to
+     * NEW.  For subclasses that track heap pointers.
+     */
+    protected void heapGen(Temp t, Exp src, List<Fact> facts) {
+        if (src instanceof CALL) {
+            Exp f = ((CALL) src).func;
+            if (f instanceof NAME && ((NAME) f).label == alloc)
+                facts.add(new Fact(HEAP, t, null, 0));
+        }
+    }
+
+    /**
+     * The HEAP fact of the branch c: p is a heap pointer if its null check
+     * BEQ(p, 0, trap) falls through.
+     */
+    protected static void heapBranch(CJUMP c, boolean taken, State s,
+            Temp.Label trap) {
+        if (taken || trap == null || c.iftrue != trap || c.op != CJUMP.Operator.BEQ)
+            return;
+        if (c.right instanceof CONST && ((CONST) c.right).value == 0
+            && c.left instanceof TEMP)
+            s.add(HEAP, s.rep(((TEMP) c.left).temp), null, 0);
+    }
+
+    /**
+     * Is e worth keeping in a temp rather than computing again?
+     */
+    protected static boolean worth(Exp e) {
+        return weight(e) >= 2;
+    }
+
+    /**
+     * Loads, multiplies and divides count twice, other operators once.
+     */
+    private static int weight(Exp e) {
+        if (e instanceof MEM)
+            return 2 + weight(((MEM) e).exp);
+        if (e instanceof BINOP) {
+            BINOP b = (BINOP) e;
+            int w;
+            switch (b.op) {
+            case MUL: case DIV: case DIVU: case MOD: w = 2; break;
+            default: w = 1; break;
+            }
+            return w + weight(b.left) + weight(b.right);
+        }
+        return 0;
+    }
+
+    /**
+     * Compute in[] for the graph as it stands.
+     */
+    protected void analyze() {
+        in = new State[graph.size()];
+        if (graph.entry == null)
+            return;
+        List<Block> order = graph.reversePostorder();
+        // null means not yet reached (top of the lattice)
+        State[] outTrue = new State[graph.size()];
+        State[] outFalse = new State[graph.size()];
+        in[graph.entry.index()] = new State();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block b : order) {
+                State s = null;
+                if (b == graph.entry)
+                    s = new State();
+                for (Block p : b.preds) {
+                    State e = edge(p, b, outTrue, outFalse);
+                    if (e == null)
+                        continue;
+                    if (s == null)
+                        s = new State(e);
+                    else
+                        s.meet(e);
+                }
+                if (s == null)
+                    continue;
+                if (s.equals(in[b.index()]) && outTrue[b.index()] != null)
+                    continue;
+                in[b.index()] = s;
+                transfer(b, new State(s), outTrue, outFalse);
+                changed = true;
+            }
+        }
+    }
+
+    private State edge(Block p, Block b, State[] outTrue, State[] outFalse) {
+        Stm last = p.stms.getLast();
+        int i = p.index();
+        if (last instanceof CJUMP) {
+            CJUMP c = (CJUMP) last;
+            if (c.iftrue == b.label() && c.iffalse == b.label()) {
+                if (outTrue[i] == null)
+                    return null;
+                State s = new State(outTrue[i]);
+                s.meet(outFalse[i]);
+                return s;
+            }
+            return c.iftrue == b.label() ? outTrue[i] : outFalse[i];
+        }
+        return outTrue[i];
+    }
+
+    private void transfer(Block b, State s, State[] outTrue, State[] outFalse) {
+        for (Stm stm : b.stms)
+            step(stm, s);
+        Stm last = b.stms.getLast();
+        if (last instanceof CJUMP) {
+            CJUMP c = (CJUMP) last;
+            State t = new State(s);
+            branch(c, true, t);
+            branch(c, false, s);
+            outTrue[b.index()] = t;
+            outFalse[b.index()] = s;
+        } else
+            outTrue[b.index()] = outFalse[b.index()] = s;
+    }
+
+    /**
+     * May evaluating e call a procedure?  An ESEQ (not in canonical trees)
+     * is assumed to.
+     */
+    protected static boolean hasCall(Exp e) {
+        if (e instanceof CALL)
+            return true;
+        if (e instanceof ESEQ)
+            return true;
+        for (Exp k : e.kids())
+            if (hasCall(k))
+                return true;
+        return false;
+    }
+
+    /**
+     * Apply the effect of one statement to s.
+     */
+    protected void step(Stm stm, State s) {
+        if (stm instanceof MOVE) {
+            MOVE m = (MOVE) stm;
+            if (hasCall(m.src))
+                s.killMemory();
+            if (m.dst instanceof MEM) {
+                evaluated(((MEM) m.dst).exp, s);
+                evaluated(m.src, s);
+                s.killMemory();
+                return;
+            }
+            evaluated(m.src, s);
+            if (m.dst instanceof TEMP)
+                assign(((TEMP) m.dst).temp, m.src, s);
+        } else if (stm instanceof EXP) {
+            EXP e = (EXP) stm;
+            if (hasCall(e.exp))
+                s.killMemory();
+            evaluated(e.exp, s);
+        }
+    }
+
+    private void assign(Temp t, Exp src, State s) {
+        Temp copy = null;
+        Temp base = null;
+        int offset = 0;
+        if (src instanceof TEMP) {
+            copy = s.rep(((TEMP) src).temp);
+        } else if (src instanceof MEM && ((MEM) src).exp instanceof TEMP) {
+            base = s.rep(((TEMP) ((MEM) src).exp).temp);
+            offset = ((MEM) src).offset.value;
+            for (Fact f : s.facts)
+                if (f.kind == LOAD && f.b == base && f.k == offset) {
+                    copy = f.a;
+                    break;
+                }
+        }
+        if (copy != null && copy == s.rep(t))
+            return;   // t already holds this value
+        ArrayList<Fact> facts = new ArrayList<Fact>();
+        if (copy == null)
+            gen(t, src, s, facts);
+        s.kill(t);
+        if (copy != null) {
+            s.copies.put(t, copy);
+            return;
+        }
+        // facts relating t to its own old value no longer hold
+        if (base != null && base != t)
+            s.add(LOAD, t, base, offset);
+        for (Fact f : facts)
+            if (f.b != t)
+                s.facts.add(f);
+    }
+}
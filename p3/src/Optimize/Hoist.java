@@ -0,0 +1,345 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.*;
+import Translate.Temp;
+import Translate.Temp.Label;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * Loop-invariant code motion.
+ *
+ * An expression in a loop is invariant if every temp it reads holds a
+ * value the loop does not change (the temp, or the temp it is a copy of,
+ * is not assigned in the loop), it cannot trap, and every word it loads
+ * is one no store or call in the loop can change.  Each largest invariant
+ * expression worth keeping in a register (one that loads, multiplies or
+ * divides, or has two or more operators) is computed once into a new temp
+ * in the loop's preheader, and its occurrences in the loop read the temp.
+ * Only expressions computed on every iteration are hoisted: one computed
+ * on a rarely taken path would only tie up a register across the loop.
+ *
+ * The preheader runs even if the loop body never does, so a load is
+ * hoisted only if it is safe wherever the loop is entered: from the frame
+ * or a global, from the header word (length or method suite) of a heap
+ * pointer that has passed its null check, or from a heap word that was
+ * already loaded before the loop.  Header words are never stored to once
+ * allocated, so loads of them are invariant even in loops with calls;
+ * other loads are invariant only in loops without calls, and only if no
+ * store in the loop may write the same word.  Heap pointers are the temps
+ * that have passed a null check or hold the result of NEW.
+ */
+public class Hoist extends LoopFacts {
+    /**
+     * Number of expressions hoisted.
+     */
+    public int hoisted = 0;
+
+    private final Label trap;
+    private final Temp fp;
+
+    public Hoist(BlockGraph g, Translate.Frame frame) {
+        super(g, frame.wordSize());
+        trap = frame.badPtr();
+        Exp f = frame.FP();
+        fp = (f instanceof TEMP) ? ((TEMP) f).temp : null;
+    }
+
+    protected void gen(Temp t, Exp src, State s, List<Fact> facts) {
+        heapGen(t, src, facts);
+    }
+
+    protected void branch(CJUMP c, boolean taken, State s) {
+        heapBranch(c, taken, s, trap);
+    }
+
+    /**
+     * Where a word of memory lives, as far as can be told.
+     */
+    private enum Region { FRAME, GLOBAL, HEAP, UNKNOWN }
+
+    private static class Word {
+        final Region region;
+        // the temp or label the offset is from, or null if unknown
+        final Object base;
+        final boolean exact;
+        final int offset;
+
+        Word(Region r, Object b, boolean e, int k) {
+            region = r;
+            base = b;
+            exact = e;
+            offset = k;
+        }
+
+        /**
+         * Might a store to this word change the word w?
+         */
+        boolean hits(Word w) {
+            if (region == Region.UNKNOWN || w.region == Region.UNKNOWN)
+                return true;
+            if (region != w.region)
+                return false;
+            if (!exact || !w.exact)
+                return true;
+            if (region == Region.GLOBAL && base != w.base)
+                return false;
+            // two heap objects are disjoint, so a field is one word
+            // whatever the base
+            return offset == w.offset;
+        }
+    }
+
+    private Word word(MEM m, State s) {
+        Exp a = m.exp;
+        int k = m.offset.value;
+        if (a instanceof NAME)
+            return new Word(Region.GLOBAL, ((NAME) a).label, true, k);
+        if (a instanceof TEMP) {
+            Temp t = s.rep(((TEMP) a).temp);
+            if (t == fp)
+                return new Word(Region.FRAME, t, true, k);
+            if (s.has(HEAP, t, null, 0))
+                return new Word(Region.HEAP, t, true, k);
+        }
+        if (a instanceof BINOP && ((BINOP) a).op == BINOP.Operator.ADD) {
+            // an element of an array
+            BINOP b = (BINOP) a;
+            for (Exp e : new Exp[] { b.left, b.right })
+                if (e instanceof TEMP) {
+                    Temp t = s.rep(((TEMP) e).temp);
+                    if (s.has(HEAP, t, null, 0))
+                        return new Word(Region.HEAP, t, false, k);
+                }
+        }
+        return new Word(Region.UNKNOWN, null, false, k);
+    }
+
+    // the loop being optimized
+    private Loop loop;
+    private HashSet<Temp> defined;
+    private boolean calls;
+    private ArrayList<Word> stores;
+    // the facts on entry to the loop
+    private State header;
+    // hoisted expressions by key, and their temps
+    private LinkedHashMap<String, Exp> found;
+    private HashMap<String, Temp> temps;
+
+    protected void optimize(Loop l) {
+        loop = l;
+        defined = new HashSet<Temp>();
+        calls = false;
+        stores = new ArrayList<Word>();
+        found = new LinkedHashMap<String, Exp>();
+        temps = null;
+        for (Block b : l.blocks)
+            for (Stm s : b.stms) {
+                if (s instanceof MOVE && ((MOVE) s).dst instanceof TEMP)
+                    defined.add(((TEMP) ((MOVE) s).dst).temp);
+                for (Exp e : s.kids())
+                    calls |= hasCall(e);
+            }
+        analyze();
+        header = in[l.header.index()];
+        if (header == null)
+            return;
+        for (Block b : l.blocks) {
+            if (in[b.index()] == null)
+                continue;
+            State s = new State(in[b.index()]);
+            for (Stm stm : b.stms) {
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof MEM)
+                    stores.add(word((MEM) ((MOVE) stm).dst, s));
+                step(stm, s);
+            }
+        }
+        walk();
+        if (found.isEmpty())
+            return;
+        Block pre = l.preheader(graph);
+        if (pre == null)
+            return;
+        temps = new HashMap<String, Temp>();
+        for (Map.Entry<String, Exp> e : found.entrySet()) {
+            Temp t = new Temp();
+            temps.put(e.getKey(), t);
+            pre.stms.add(pre.stms.size() - 1, new MOVE(new TEMP(t), e.getValue()));
+            hoisted++;
+        }
+        walk();
+    }
+
+    /**
+     * Find the invariant expressions of the loop or, once they have temps,
+     * replace them.
+     */
+    private void walk() {
+        for (Block b : loop.blocks) {
+            if (in[b.index()] == null)
+                continue;
+            State s = new State(in[b.index()]);
+            every = loop.everyIteration(b, dominators);
+            ListIterator<Stm> i = b.stms.listIterator();
+            while (i.hasNext()) {
+                Stm stm = i.next();
+                Stm r = hoist(stm, s);
+                if (r != stm)
+                    i.set(r);
+                // the facts are those of the original loop
+                step(stm, s);
+            }
+        }
+    }
+
+    // does the block being walked run on every iteration?
+    private boolean every;
+
+    private Stm hoist(Stm stm, State s) {
+        if (stm instanceof LABEL)
+            return stm;
+        Exp[] kids = stm.kids();
+        boolean changed = false;
+        for (int k = 0; k < kids.length; k++) {
+            Exp e = hoist(kids[k], s);
+            changed |= e != kids[k];
+            kids[k] = e;
+        }
+        return changed ? stm.build(kids) : stm;
+    }
+
+    private Exp hoist(Exp e, State s) {
+        Exp v = invariant(e, s);
+        if (v != null && worth(v)) {
+            String key = key(v);
+            if (temps == null) {
+                if (every)
+                    found.put(key, v);
+                return e;
+            }
+            Temp t = temps.get(key);
+            if (t != null)
+                return new TEMP(t);
+        }
+        Exp[] kids = e.kids();
+        boolean changed = false;
+        for (int k = 0; k < kids.length; k++) {
+            Exp r = hoist(kids[k], s);
+            changed |= r != kids[k];
+            kids[k] = r;
+        }
+        return changed ? e.build(kids) : e;
+    }
+
+    /**
+     * If e is invariant in the loop, e with each temp replaced by the temp
+     * whose value it holds; otherwise null.
+     */
+    private Exp invariant(Exp e, State s) {
+        if (e instanceof CONST || e instanceof NAME)
+            return e;
+        if (e instanceof TEMP) {
+            Temp t = s.rep(((TEMP) e).temp);
+            if (defined.contains(t))
+                return null;
+            return t == ((TEMP) e).temp ? e : new TEMP(t);
+        }
+        if (e instanceof BINOP) {
+            BINOP b = (BINOP) e;
+            switch (b.op) {
+            case DIV: case DIVU: case MOD:
+                if (!(b.right instanceof CONST) || ((CONST) b.right).value == 0)
+                    return null;
+                break;
+            default:
+                break;
+            }
+            Exp l = invariant(b.left, s);
+            Exp r = (l == null) ? null : invariant(b.right, s);
+            if (r == null)
+                return null;
+            return (l == b.left && r == b.right) ? e : new BINOP(b.op, l, r);
+        }
+        if (e instanceof MEM) {
+            MEM m = (MEM) e;
+            Exp a = invariant(m.exp, s);
+            if (a == null)
+                return null;
+            MEM v = (a == m.exp) ? m : new MEM(a, m.offset);
+            return loadable(v) ? v : null;
+        }
+        return null;
+    }
+
+    /**
+     * May v (whose address is invariant) be loaded in the preheader, and
+     * is the word it loads the same throughout the loop?
+     */
+    private boolean loadable(MEM v) {
+        // the address temps are invariant, so the facts on entry to the
+        // loop describe them
+        Word w = word(v, header);
+        switch (w.region) {
+        case HEAP:
+            if (!w.exact)
+                return false;
+            if (w.offset == -wordSize())
+                return true;
+            if (!loaded((Temp) w.base, w.offset))
+                return false;
+            break;
+        case FRAME:
+        case GLOBAL:
+            break;
+        default:
+            return false;
+        }
+        if (calls)
+            return false;
+        for (Word st : stores)
+            if (st.hits(w))
+                return false;
+        return true;
+    }
+
+    /**
+     * Has the word at t + k been loaded on every path into the loop?
+     */
+    private boolean loaded(Temp t, int k) {
+        for (Fact f : header.facts)
+            if (f.kind == LOAD && f.b == t && f.k == k)
+                return true;
+        return false;
+    }
+
+    private static String key(Exp e) {
+        StringBuilder b = new StringBuilder();
+        key(e, b);
+        return b.toString();
+    }
+
+    private static void key(Exp e, StringBuilder b) {
+        if (e instanceof CONST)
+            b.append(((CONST) e).value);
+        else if (e instanceof NAME)
+            b.append(((NAME) e).label);
+        else if (e instanceof TEMP)
+            b.append('t').append(((TEMP) e).temp.id);
+        else if (e instanceof MEM) {
+            b.append("M(");
+            key(((MEM) e).exp, b);
+            b.append(',').append(((MEM) e).offset.value).append(')');
+        } else {
+            BINOP o = (BINOP) e;
+            b.append(o.op).append('(');
+            key(o.left, b);
+            b.append(',');
+            key(o.right, b);
+            b.append(')');
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.*;
+import Translate.Temp;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * Strength reduction of array addressing in loops.
+ *
+ * A basic induction variable of a loop is a temp whose only definition in
+ * the loop is i := i + c (or i - c) for constant c; the index of a FOR
+ * loop is one.  An address b + i * m (or b + (i << k)) computed in the
+ * loop, where b is a temp the loop does not define and i is, or is a copy
+ * of, a basic induction variable, is replaced by a new temp p.  p is set
+ * to b + i * m in the loop's preheader and advanced by c * m right after
+ * each increment of i, so it always equals b + i * m and an array walk
+ * costs one add per iteration instead of a shift and an add per access.
+ */
+public class Induction extends LoopFacts {
+    /**
+     * Number of addresses rewritten.
+     */
+    public int reduced = 0;
+
+    public Induction(BlockGraph g, int wordSize) {
+        super(g, wordSize);
+    }
+
+    // only copies matter here
+    protected void gen(Temp t, Exp src, State s, List<Fact> facts) {
+    }
+
+    protected void branch(CJUMP c, boolean taken, State s) {
+    }
+
+    /**
+     * A pointer p == base + iv * scale.
+     */
+    private static class Derived {
+        final Temp base, iv;
+        final int scale;
+        Temp p = null;
+
+        Derived(Temp b, Temp i, int m) {
+            base = b;
+            iv = i;
+            scale = m;
+        }
+    }
+
+    // while true, reducible addresses are recorded rather than replaced
+    private boolean finding;
+    // temps defined in the loop, and the basic induction variables' steps
+    private final HashSet<Temp> defined = new HashSet<Temp>();
+    private final HashMap<Temp, Integer> steps = new HashMap<Temp, Integer>();
+    private final HashMap<Temp, MOVE> increments = new HashMap<Temp, MOVE>();
+    private final ArrayList<Derived> derived = new ArrayList<Derived>();
+
+    protected void optimize(Loop l) {
+        defined.clear();
+        steps.clear();
+        increments.clear();
+        derived.clear();
+        HashMap<Temp, Integer> count = new HashMap<Temp, Integer>();
+        for (Block b : l.blocks)
+            for (Stm s : b.stms) {
+                if (!(s instanceof MOVE) || !(((MOVE) s).dst instanceof TEMP))
+                    continue;
+                Temp t = ((TEMP) ((MOVE) s).dst).temp;
+                defined.add(t);
+                Integer n = count.get(t);
+                count.put(t, n == null ? 1 : n + 1);
+                Integer c = stride(t, ((MOVE) s).src);
+                if (c != null) {
+                    steps.put(t, c);
+                    increments.put(t, (MOVE) s);
+                }
+            }
+        for (Map.Entry<Temp, Integer> e : count.entrySet())
+            if (e.getValue() != 1) {
+                steps.remove(e.getKey());
+                increments.remove(e.getKey());
+            }
+        if (steps.isEmpty())
+            return;
+
+        analyze();
+        finding = true;
+        for (Block b : l.blocks)
+            walk(b);
+        if (derived.isEmpty())
+            return;
+        Block pre = l.preheader(graph);
+        if (pre == null)
+            return;
+
+        LinkedList<Stm> init = pre.stms;
+        for (Derived d : derived) {
+            d.p = new Temp();
+            init.add(init.size() - 1,
+                     new MOVE(new TEMP(d.p),
+                              new BINOP(BINOP.Operator.ADD, new TEMP(d.base),
+                                        new BINOP(BINOP.Operator.MUL, new TEMP(d.iv),
+                                                  new CONST(d.scale)))));
+            MOVE inc = increments.get(d.iv);
+            for (Block b : l.blocks) {
+                int i = b.stms.indexOf(inc);
+                if (i >= 0) {
+                    b.stms.add(i + 1,
+                               new MOVE(new TEMP(d.p),
+                                        new BINOP(BINOP.Operator.ADD, new TEMP(d.p),
+                                                  new CONST(steps.get(d.iv) * d.scale))));
+                    break;
+                }
+            }
+        }
+        finding = false;
+        for (Block b : l.blocks)
+            walk(b);
+    }
+
+    /**
+     * If t := src steps t by a constant, the step.
+     */
+    private static Integer stride(Temp t, Exp src) {
+        if (!(src instanceof BINOP))
+            return null;
+        BINOP b = (BINOP) src;
+        if (!(b.left instanceof TEMP) || ((TEMP) b.left).temp != t
+            || !(b.right instanceof CONST))
+            return null;
+        int c = ((CONST) b.right).value;
+        if (b.op == BINOP.Operator.ADD)
+            return c;
+        if (b.op == BINOP.Operator.SUB)
+            return -c;
+        return null;
+    }
+
+    /**
+     * Walk b, recording or replacing the reducible addresses.
+     */
+    private void walk(Block b) {
+        if (in[b.index()] == null)
+            return;
+        State s = new State(in[b.index()]);
+        ListIterator<Stm> i = b.stms.listIterator();
+        while (i.hasNext()) {
+            Stm stm = i.next();
+            Stm r = reduce(stm, s);
+            if (r != stm)
+                i.set(r);
+            step(r, s);
+        }
+    }
+
+    private Stm reduce(Stm stm, State s) {
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof MEM) {
+            MOVE m = (MOVE) stm;
+            Exp dst = reduce(m.dst, s);
+            Exp src = reduce(m.src, s);
+            if (dst == m.dst && src == m.src)
+                return stm;
+            return new MOVE(dst, src);
+        }
+        if (stm instanceof LABEL)
+            return stm;
+        Exp[] kids = stm.kids();
+        boolean changed = false;
+        for (int k = 0; k < kids.length; k++) {
+            Exp e = reduce(kids[k], s);
+            changed |= e != kids[k];
+            kids[k] = e;
+        }
+        return changed ? stm.build(kids) : stm;
+    }
+
+    private Exp reduce(Exp e, State s) {
+        if (e instanceof MEM) {
+            MEM m = (MEM) e;
+            Temp p = address(m.exp, s);
+            if (p != null)
+                return new MEM(new TEMP(p), m.offset);
+        }
+        Exp[] kids = e.kids();
+        boolean changed = false;
+        for (int k = 0; k < kids.length; k++) {
+            Exp r = reduce(kids[k], s);
+            changed |= r != kids[k];
+            kids[k] = r;
+        }
+        return changed ? e.build(kids) : e;
+    }
+
+    /**
+     * If a is base + iv * scale, the pointer that holds it, or null.
+     * While finding, a reducible address is recorded and yields null.
+     */
+    private Temp address(Exp a, State s) {
+        if (!(a instanceof BINOP) || ((BINOP) a).op != BINOP.Operator.ADD)
+            return null;
+        BINOP add = (BINOP) a;
+        Derived d = derived(add.left, add.right, s);
+        if (d == null)
+            d = derived(add.right, add.left, s);
+        if (d == null)
+            return null;
+        if (d.p != null)
+            reduced++;
+        return d.p;
+    }
+
+    private Derived derived(Exp base, Exp scaled, State s) {
+        if (!(base instanceof TEMP) || !(scaled instanceof BINOP))
+            return null;
+        BINOP b = (BINOP) scaled;
+        Exp index;
+        int scale;
+        if (b.op == BINOP.Operator.SLL && b.left instanceof TEMP
+            && b.right instanceof CONST) {
+            int k = ((CONST) b.right).value;
+            if (k < 0 || k > 30)
+                return null;
+            index = b.left;
+            scale = 1 << k;
+        } else if (b.op == BINOP.Operator.MUL && b.left instanceof TEMP
+                   && b.right instanceof CONST) {
+            index = b.left;
+            scale = ((CONST) b.right).value;
+        } else
+            return null;
+        Temp x = s.rep(((TEMP) base).temp);
+        Temp i = s.rep(((TEMP) index).temp);
+        if (defined.contains(x) || !steps.containsKey(i))
+            return null;
+        for (Derived d : derived)
+            if (d.base == x && d.iv == i && d.scale == scale)
+                return d;
+        if (!finding)
+            return null;
+        Derived d = new Derived(x, i, scale);
+        derived.add(d);
+        return d;
+    }
+}
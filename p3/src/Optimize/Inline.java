@@ -0,0 +1,313 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.*;
+import Translate.Frag;
+import Translate.Frame;
+import Translate.Temp;
+import Translate.Temp.Label;
+import Translate.Tree;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * Procedure inlining, run on the translated trees of a whole module
+ * before any procedure is compiled further.
+ *
+ * A call to a procedure of the module is replaced by a copy of the
+ * callee's body if the callee is a leaf (it makes no calls, NEW included),
+ * keeps its formals, locals and static link in temps (nothing in its
+ * frame), and is either declared <*INLINE*> or no bigger than maxSize
+ * tree nodes.  The copy has fresh temps and labels; it starts by moving
+ * the static link and the actuals, in the order the call evaluates them,
+ * into the copies of the link and the formals, and its RETURNs assign a
+ * fresh result temp and jump to the copy of the return label.  A nested
+ * callee reaches the variables of its enclosing procedures through its
+ * link as before, so the link the call would have passed is all it needs.
+ *
+ * The callee itself is still compiled: it may be called through a
+ * procedure value or from another module.
+ */
+public class Inline implements Tree.Visitor<Tree> {
+    /**
+     * Callees with more tree nodes than this are inlined only if declared
+     * <*INLINE*>.
+     */
+    public static int maxSize = 48;
+
+    /**
+     * Number of calls inlined.
+     */
+    public int inlined = 0;
+
+    private final List<Frag> frags;
+    // inlinable procedures by name
+    private final HashMap<Label, Frag.Proc> callees = new HashMap<Label, Frag.Proc>();
+
+    public Inline(List<Frag> frags) {
+        this.frags = frags;
+    }
+
+    public void run() {
+        for (Frag f : frags)
+            if (f instanceof Frag.Proc && inlinable((Frag.Proc) f))
+                callees.put(((Frag.Proc) f).frame.name, (Frag.Proc) f);
+        if (callees.isEmpty())
+            return;
+        for (Frag f : frags)
+            if (f instanceof Frag.Proc) {
+                Frag.Proc p = (Frag.Proc) f;
+                if (p.body != null)
+                    p.body = (Stm) p.body.accept(this);
+            }
+    }
+
+    private static boolean inlinable(Frag.Proc p) {
+        if (p.body == null)
+            return false;
+        Frame f = p.frame;
+        Exp fp = f.FP();
+        for (Frame.Access a : f.formals)
+            if (!(a.exp(fp) instanceof TEMP))
+                return false;
+        if (f.link != null && !(f.link.exp(fp) instanceof TEMP))
+            return false;
+        int n = size(p.body, ((TEMP) fp).temp);
+        return n >= 0 && (p.inline || n <= maxSize);
+    }
+
+    /**
+     * The number of nodes in t, or -1 if t makes a call or uses the frame.
+     */
+    private static int size(Tree t, Temp fp) {
+        if (t instanceof CALL)
+            return -1;
+        if (t instanceof TEMP)
+            return ((TEMP) t).temp == fp ? -1 : 1;
+        int n = 1;
+        for (Tree k : kids(t)) {
+            int m = size(k, fp);
+            if (m < 0)
+                return -1;
+            n += m;
+        }
+        return n;
+    }
+
+    /**
+     * The subtrees of t, statements included.
+     */
+    private static List<Tree> kids(Tree t) {
+        ArrayList<Tree> l = new ArrayList<Tree>();
+        if (t instanceof SEQ) {
+            l.add(((SEQ) t).left);
+            l.add(((SEQ) t).right);
+        } else if (t instanceof ESEQ) {
+            l.add(((ESEQ) t).stm);
+            l.add(((ESEQ) t).exp);
+        } else if (t instanceof MOVE) {
+            l.add(((MOVE) t).dst);
+            l.add(((MOVE) t).src);
+        } else
+            l.addAll(Arrays.asList(t.kids()));
+        l.removeAll(Collections.singleton(null));
+        return l;
+    }
+
+    Exp exp(Exp e) {
+        return (Exp) e.accept(this);
+    }
+
+    Stm stm(Stm s) {
+        return (s == null) ? null : (Stm) s.accept(this);
+    }
+
+    private static Stm seq(Stm a, Stm b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        return new SEQ(a, b);
+    }
+
+    public Tree visit(CALL e) {
+        Exp func = exp(e.func);
+        Exp link = exp(e.link);
+        Exp[] args = new Exp[e.args.length];
+        for (int i = 0; i < args.length; i++)
+            args[i] = exp(e.args[i]);
+        Frag.Proc p = (func instanceof NAME) ? callees.get(((NAME) func).label) : null;
+        if (p == null || p.frame.formals.size() != args.length)
+            return new CALL(func, link, args);
+        inlined++;
+        Copy c = new Copy(p.frame);
+        Stm s = null;
+        Exp fp = p.frame.FP();
+        if (p.frame.link != null)
+            s = seq(s, new MOVE(c.exp(p.frame.link.exp(fp)), link));
+        int i = 0;
+        for (Frame.Access a : p.frame.formals)
+            s = seq(s, new MOVE(c.exp(a.exp(fp)), args[i++]));
+        c.define(p.body);
+        s = seq(s, c.stm(p.body));
+        return new ESEQ(s, new TEMP(c.result));
+    }
+
+    public Tree visit(EXP s) {
+        Exp e = exp(s.exp);
+        if (e instanceof ESEQ && s.exp instanceof CALL)
+            return ((ESEQ) e).stm;   // the result is not used
+        return new EXP(e);
+    }
+
+    public Tree visit(BINOP e) {
+        return new BINOP(e.op, exp(e.left), exp(e.right));
+    }
+
+    public Tree visit(MEM e) {
+        return new MEM(exp(e.exp), e.offset);
+    }
+
+    public Tree visit(TEMP e) {
+        return e;
+    }
+
+    public Tree visit(NAME e) {
+        return e;
+    }
+
+    public Tree visit(CONST e) {
+        return e;
+    }
+
+    public Tree visit(ESEQ e) {
+        return new ESEQ(stm(e.stm), exp(e.exp));
+    }
+
+    public Tree visit(SEQ s) {
+        return new SEQ(stm(s.left), stm(s.right));
+    }
+
+    public Tree visit(LABEL s) {
+        return s;
+    }
+
+    public Tree visit(JUMP s) {
+        return new JUMP(exp(s.exp), s.targets);
+    }
+
+    public Tree visit(MOVE s) {
+        return new MOVE(exp(s.dst), exp(s.src));
+    }
+
+    public Tree visit(CJUMP s) {
+        return new CJUMP(s.op, exp(s.left), exp(s.right), s.iftrue, s.iffalse);
+    }
+
+    /**
+     * A copy of a callee's body with fresh temps and labels, its result
+     * going to a fresh temp.
+     */
+    private static class Copy implements Tree.Visitor<Tree> {
+        final Temp result = new Temp();
+        private final Temp rv;
+        private final HashMap<Temp, Temp> temps = new HashMap<Temp, Temp>();
+        private final HashMap<Label, Label> labels = new HashMap<Label, Label>();
+
+        Copy(Frame f) {
+            rv = ((TEMP) f.RV()).temp;
+        }
+
+        Exp exp(Exp e) {
+            return (Exp) e.accept(this);
+        }
+
+        Stm stm(Stm s) {
+            return (s == null) ? null : (Stm) s.accept(this);
+        }
+
+        private Label label(Label l) {
+            // labels not defined in the body (traps, globals) are shared
+            Label m = labels.get(l);
+            return m == null ? l : m;
+        }
+
+        /**
+         * Give each label the body defines a fresh copy.
+         */
+        void define(Tree t) {
+            if (t instanceof LABEL)
+                labels.put(((LABEL) t).label, new Label());
+            for (Tree k : kids(t))
+                define(k);
+        }
+
+        public Tree visit(TEMP e) {
+            Temp t = e.temp;
+            if (t == rv)
+                return new TEMP(result);
+            Temp u = temps.get(t);
+            if (u == null) {
+                u = new Temp();
+                temps.put(t, u);
+            }
+            return new TEMP(u);
+        }
+
+        public Tree visit(NAME e) {
+            Label l = label(e.label);
+            return l == e.label ? e : new NAME(l);
+        }
+
+        public Tree visit(CONST e) {
+            return e;
+        }
+
+        public Tree visit(BINOP e) {
+            return new BINOP(e.op, exp(e.left), exp(e.right));
+        }
+
+        public Tree visit(MEM e) {
+            return new MEM(exp(e.exp), e.offset);
+        }
+
+        public Tree visit(CALL e) {
+            throw new Error("call in inlined procedure");
+        }
+
+        public Tree visit(ESEQ e) {
+            return new ESEQ(stm(e.stm), exp(e.exp));
+        }
+
+        public Tree visit(SEQ s) {
+            return new SEQ(stm(s.left), stm(s.right));
+        }
+
+        public Tree visit(LABEL s) {
+            return new LABEL(label(s.label));
+        }
+
+        public Tree visit(JUMP s) {
+            Label[] targets = new Label[s.targets.length];
+            for (int i = 0; i < targets.length; i++)
+                targets[i] = label(s.targets[i]);
+            return new JUMP(exp(s.exp), targets);
+        }
+
+        public Tree visit(MOVE s) {
+            return new MOVE(exp(s.dst), exp(s.src));
+        }
+
+        public Tree visit(EXP s) {
+            return new EXP(exp(s.exp));
+        }
+
+        public Tree visit(CJUMP s) {
+            return new CJUMP(s.op, exp(s.left), exp(s.right),
+                             label(s.iftrue), label(s.iffalse));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.*;
+import Translate.Temp.Label;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * A natural loop: a header that dominates every block of the loop, and
+ * the blocks that can reach a back edge into the header without passing
+ * through it.  Loops sharing a header are merged.
+ */
+public class Loop {
+    public final Block header;
+    public final LinkedHashSet<Block> blocks = new LinkedHashSet<Block>();
+
+    Loop(Block h) {
+        header = h;
+        blocks.add(h);
+    }
+
+    public boolean contains(Block b) {
+        return blocks.contains(b);
+    }
+
+    /**
+     * Does b run on every iteration of the loop: does it dominate every
+     * block that jumps back to the header?
+     */
+    public boolean everyIteration(Block b, Dominators d) {
+        for (Block p : header.preds)
+            if (contains(p) && !d.dominates(b, p))
+                return false;
+        return true;
+    }
+
+    /**
+     * The loops of g, innermost first.
+     */
+    public static List<Loop> find(BlockGraph g, Dominators d) {
+        LinkedHashMap<Block, Loop> loops = new LinkedHashMap<Block, Loop>();
+        for (Block b : g.reversePostorder())
+            for (Block h : b.succs) {
+                if (!d.dominates(h, b))
+                    continue;
+                Loop l = loops.get(h);
+                if (l == null) {
+                    l = new Loop(h);
+                    loops.put(h, l);
+                }
+                LinkedList<Block> work = new LinkedList<Block>();
+                if (l.blocks.add(b))
+                    work.add(b);
+                while (!work.isEmpty())
+                    for (Block p : work.removeFirst().preds)
+                        if (d.reachable(p) && l.blocks.add(p))
+                            work.add(p);
+            }
+        ArrayList<Loop> list = new ArrayList<Loop>(loops.values());
+        Collections.sort(list, new Comparator<Loop>() {
+            public int compare(Loop a, Loop b) {
+                return a.blocks.size() - b.blocks.size();
+            }
+        });
+        return list;
+    }
+
+    /**
+     * A block outside the loop through which every entry to the loop
+     * passes, and whose only successor is the header; code placed before
+     * its final JUMP runs once before the loop.  If no existing block will
+     * do, one is inserted into g.  Returns null if the loop is entered by
+     * a computed jump, which cannot be redirected.
+     */
+    public Block preheader(BlockGraph g) {
+        ArrayList<Block> outside = new ArrayList<Block>();
+        for (Block p : header.preds)
+            if (!contains(p))
+                outside.add(p);
+        if (outside.size() == 1) {
+            Block p = outside.get(0);
+            if (p.succs.size() == 1 && p.stms.getLast() instanceof JUMP)
+                return p;
+        }
+        for (Block p : outside) {
+            Stm last = p.stms.getLast();
+            if (last instanceof JUMP && ((JUMP) last).targets.length != 1)
+                return null;
+        }
+        Label h = header.label();
+        LinkedList<Stm> stms = new LinkedList<Stm>();
+        stms.add(new LABEL(new Label()));
+        stms.add(new JUMP(h));
+        Block pre = g.insert(stms, header);
+        Label l = pre.label();
+        for (Block p : outside) {
+            Stm last = p.stms.getLast();
+            if (last instanceof CJUMP) {
+                CJUMP c = (CJUMP) last;
+                p.stms.set(p.stms.size() - 1,
+                           new CJUMP(c.op, c.left, c.right,
+                                     c.iftrue == h ? l : c.iftrue,
+                                     c.iffalse == h ? l : c.iffalse));
+            } else
+                p.stms.set(p.stms.size() - 1, new JUMP(l));
+            g.rmEdge(p, header);
+            g.addEdge(p, pre);
+        }
+        g.addEdge(pre, header);
+        return pre;
+    }
+}
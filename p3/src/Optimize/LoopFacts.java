@@ -0,0 +1,45 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.HashSet;
+import Translate.Temp.Label;
+
+/**
+ * A Facts analysis used to optimize each loop of the graph in turn,
+ * innermost first.  The loops are found afresh after each one, since
+ * optimizing a loop may insert its preheader.
+ */
+public abstract class LoopFacts extends Facts {
+    /**
+     * The dominators of the graph as it was when the loop being optimized
+     * was found.
+     */
+    protected Dominators dominators;
+
+    protected LoopFacts(BlockGraph g, int wordSize) {
+        super(g, wordSize);
+    }
+
+    /**
+     * Optimize l.  in[] is not yet computed.
+     */
+    protected abstract void optimize(Loop l);
+
+    public void run() {
+        HashSet<Label> done = new HashSet<Label>();
+        for (;;) {
+            Loop next = null;
+            dominators = new Dominators(graph);
+            for (Loop l : Loop.find(graph, dominators))
+                if (!done.contains(l.header.label())) {
+                    next = l;
+                    break;
+                }
+            if (next == null)
+                return;
+            done.add(next.header.label());
+            optimize(next);
+        }
+    }
+}
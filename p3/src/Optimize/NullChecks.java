@@ -0,0 +1,96 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.List;
+import Translate.Temp;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm.*;
+
+/**
+ * Null check elimination.
+ *
+ * Translate guards every dereference and field access p.f with
+ * BEQ(p, 0, badPtr).  This pass tracks which temps are known to be
+ * non-nil and removes the checks those facts discharge.  A temp is
+ * non-nil once a check on it has passed (or any branch has shown it is
+ * not 0), when it holds the result of NEW (the allocator never returns
+ * nil), and when it is the receiver of a method call that has been
+ * dispatched (the dispatch loads the method suite through the receiver,
+ * which traps for nil).  Facts about a temp's value survive stores and
+ * calls.
+ */
+public class NullChecks extends CheckElim {
+    /**
+     * a != 0
+     */
+    static final String NONNULL = "NONNULL";
+
+    private final Temp.Label alloc = Temp.getLabel("new");
+
+    public NullChecks(BlockGraph g, Translate.Frame frame) {
+        super(g, frame.badPtr(), frame.wordSize());
+    }
+
+    private static boolean zero(Exp e) {
+        return e instanceof CONST && ((CONST) e).value == 0;
+    }
+
+    private static boolean nonnull(Exp e, State s) {
+        if (e instanceof CONST)
+            return ((CONST) e).value != 0;
+        if (e instanceof NAME)
+            return true;
+        return e instanceof TEMP && s.has(NONNULL, s.rep(((TEMP) e).temp), null, 0);
+    }
+
+    protected void gen(Temp t, Exp src, State s, List<Fact> facts) {
+        if (src instanceof CALL) {
+            Exp f = ((CALL) src).func;
+            if (f instanceof NAME && ((NAME) f).label == alloc)
+                facts.add(new Fact(NONNULL, t, null, 0));
+        } else if (nonnull(src, s))
+            facts.add(new Fact(NONNULL, t, null, 0));
+    }
+
+    /**
+     * A method call dispatches through MEM(MEM(p, -wordSize), offset),
+     * which cannot complete if p is nil.
+     */
+    protected void evaluated(Exp e, State s) {
+        if (e instanceof MEM) {
+            MEM m = (MEM) e;
+            if (m.exp instanceof MEM) {
+                MEM v = (MEM) m.exp;
+                if (v.exp instanceof TEMP && v.offset.value == -wordSize())
+                    s.add(NONNULL, s.rep(((TEMP) v.exp).temp), null, 0);
+            }
+        }
+        if (e instanceof ESEQ)
+            return;   // not in canonical trees
+        for (Exp k : e.kids())
+            evaluated(k, s);
+    }
+
+    protected void branch(CJUMP c, boolean taken, State s) {
+        CJUMP.Operator op = taken ? c.op : c.not().op;
+        if (op != CJUMP.Operator.BNE)
+            return;
+        if (zero(c.right) && c.left instanceof TEMP)
+            s.add(NONNULL, s.rep(((TEMP) c.left).temp), null, 0);
+        else if (zero(c.left) && c.right instanceof TEMP)
+            s.add(NONNULL, s.rep(((TEMP) c.right).temp), null, 0);
+    }
+
+    protected boolean passes(CJUMP c, State s) {
+        // BEQ(p, 0, badPtr)
+        if (c.op != CJUMP.Operator.BEQ)
+            return false;
+        if (zero(c.right))
+            return nonnull(c.left, s);
+        if (zero(c.left))
+            return nonnull(c.right, s);
+        return false;
+    }
+}
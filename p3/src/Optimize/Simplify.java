@@ -0,0 +1,310 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import Translate.Tree;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * Constant folding and algebraic simplification of a procedure body, run
+ * on the trees Translate produces, before Canon.
+ *
+ * Constants are folded with the wrap-around arithmetic of the targets.
+ * DIV and MOD are folded only on non-negative operands, where every
+ * reading of them agrees; by a power of two they become SRA and AND,
+ * which give M3's rounding toward minus infinity.  Multiplication by a
+ * power of two becomes SLL.  Constant addends are gathered to the right
+ * and merged into the offset of an enclosing MEM.  An operand is dropped
+ * (x * 0, x MOD 1, x AND 0) only if evaluating it has no effect.
+ */
+public class Simplify implements Tree.Visitor<Tree> {
+    /**
+     * Number of nodes rewritten.
+     */
+    public int folded = 0;
+
+    /**
+     * MEM offsets are kept to what a load or store can encode directly.
+     */
+    private static final int maxOffset = Short.MAX_VALUE;
+
+    public Stm stm(Stm s) {
+        return (s == null) ? null : (Stm) s.accept(this);
+    }
+
+    Exp exp(Exp e) {
+        return (Exp) e.accept(this);
+    }
+
+    private static boolean isConst(Exp e) {
+        return e instanceof CONST;
+    }
+
+    private static int value(Exp e) {
+        return ((CONST) e).value;
+    }
+
+    private static boolean isConst(Exp e, int v) {
+        return e instanceof CONST && ((CONST) e).value == v;
+    }
+
+    /**
+     * log2(v) if v is a positive power of two, else -1.
+     */
+    private static int log2(int v) {
+        if (v <= 0 || (v & (v - 1)) != 0)
+            return -1;
+        return Integer.numberOfTrailingZeros(v);
+    }
+
+    /**
+     * Can e be discarded without changing what the program does?
+     */
+    private static boolean pure(Exp e) {
+        if (e instanceof CONST || e instanceof NAME || e instanceof TEMP)
+            return true;
+        if (e instanceof BINOP) {
+            BINOP b = (BINOP) e;
+            // division by zero traps
+            if ((b.op == BINOP.Operator.DIV || b.op == BINOP.Operator.DIVU
+                 || b.op == BINOP.Operator.MOD) && !(isConst(b.right) && value(b.right) != 0))
+                return false;
+            return pure(b.left) && pure(b.right);
+        }
+        return false;
+    }
+
+    private CONST fold(int v) {
+        folded++;
+        return new CONST(v);
+    }
+
+    private Exp rewrite(Exp e) {
+        folded++;
+        return e;
+    }
+
+    /**
+     * x + k, written as SUB when k is negative.
+     */
+    private static Exp plus(Exp x, int k) {
+        if (k == 0)
+            return x;
+        if (k < 0 && k != Integer.MIN_VALUE)
+            return new BINOP(BINOP.Operator.SUB, x, new CONST(-k));
+        return new BINOP(BINOP.Operator.ADD, x, new CONST(k));
+    }
+
+    /**
+     * If e is x + k or x - k for constant k, return k (negated for SUB).
+     */
+    private static Integer addend(Exp e) {
+        if (!(e instanceof BINOP))
+            return null;
+        BINOP b = (BINOP) e;
+        if (!isConst(b.right))
+            return null;
+        if (b.op == BINOP.Operator.ADD)
+            return value(b.right);
+        if (b.op == BINOP.Operator.SUB && value(b.right) != Integer.MIN_VALUE)
+            return -value(b.right);
+        return null;
+    }
+
+    public Tree visit(BINOP e) {
+        Exp l = exp(e.left);
+        Exp r = exp(e.right);
+        BINOP.Operator op = e.op;
+        // constants go on the right of commutative operators
+        switch (op) {
+        case ADD: case MUL: case AND: case OR: case XOR:
+            if (isConst(l) && !isConst(r)) {
+                Exp t = l;
+                l = r;
+                r = t;
+            }
+            break;
+        default:
+            break;
+        }
+        if (isConst(l) && isConst(r)) {
+            int a = value(l), b = value(r);
+            switch (op) {
+            case ADD: return fold(a + b);
+            case SUB: return fold(a - b);
+            case MUL: return fold(a * b);
+            case AND: return fold(a & b);
+            case OR:  return fold(a | b);
+            case XOR: return fold(a ^ b);
+            case SLL: return fold(a << b);
+            case SRA: return fold(a >> b);
+            case SRL: return fold(a >>> b);
+            case DIV:
+            case DIVU:
+                if (a >= 0 && b > 0)
+                    return fold(a / b);
+                break;
+            case MOD:
+                if (a >= 0 && b > 0)
+                    return fold(a % b);
+                break;
+            default:
+                break;
+            }
+        }
+        if (isConst(r)) {
+            int k = value(r);
+            switch (op) {
+            case ADD:
+            case SUB: {
+                if (k == 0)
+                    return rewrite(l);
+                // (x + a) + b  =>  x + (a + b)
+                Integer a = addend(l);
+                if (a != null) {
+                    Exp x = ((BINOP) l).left;
+                    return rewrite(plus(x, op == BINOP.Operator.ADD ? a + k : a - k));
+                }
+                break;
+            }
+            case MUL: {
+                if (k == 1)
+                    return rewrite(l);
+                if (k == 0 && pure(l))
+                    return fold(0);
+                int n = log2(k);
+                if (n > 0)
+                    return rewrite(new BINOP(BINOP.Operator.SLL, l, new CONST(n)));
+                break;
+            }
+            case DIV: {
+                if (k == 1)
+                    return rewrite(l);
+                int n = log2(k);
+                if (n > 0)
+                    return rewrite(new BINOP(BINOP.Operator.SRA, l, new CONST(n)));
+                break;
+            }
+            case DIVU: {
+                if (k == 1)
+                    return rewrite(l);
+                int n = log2(k);
+                if (n > 0)
+                    return rewrite(new BINOP(BINOP.Operator.SRL, l, new CONST(n)));
+                break;
+            }
+            case MOD: {
+                if (k == 1 && pure(l))
+                    return fold(0);
+                int n = log2(k);
+                if (n > 0)
+                    return rewrite(new BINOP(BINOP.Operator.AND, l, new CONST(k - 1)));
+                break;
+            }
+            case AND:
+                if (k == -1)
+                    return rewrite(l);
+                if (k == 0 && pure(l))
+                    return fold(0);
+                break;
+            case OR:
+            case XOR:
+            case SLL:
+            case SRA:
+            case SRL:
+                if (k == 0)
+                    return rewrite(l);
+                break;
+            default:
+                break;
+            }
+        }
+        if (l == e.left && r == e.right)
+            return e;
+        return new BINOP(op, l, r);
+    }
+
+    public Tree visit(MEM e) {
+        Exp a = exp(e.exp);
+        int offset = e.offset.value;
+        // MEM(x + k, offset)  =>  MEM(x, offset + k)
+        Integer k = addend(a);
+        if (k != null) {
+            long o = (long) offset + k;
+            if (-maxOffset <= o && o <= maxOffset) {
+                folded++;
+                return new MEM(((BINOP) a).left, new CONST((int) o));
+            }
+        }
+        if (a == e.exp)
+            return e;
+        return new MEM(a, e.offset);
+    }
+
+    public Tree visit(TEMP e) {
+        return e;
+    }
+
+    public Tree visit(NAME e) {
+        return e;
+    }
+
+    public Tree visit(CONST e) {
+        return e;
+    }
+
+    public Tree visit(ESEQ e) {
+        return new ESEQ(stm(e.stm), exp(e.exp));
+    }
+
+    public Tree visit(CALL e) {
+        Exp[] args = new Exp[e.args.length];
+        for (int i = 0; i < args.length; i++)
+            args[i] = exp(e.args[i]);
+        return new CALL(exp(e.func), exp(e.link), args);
+    }
+
+    public Tree visit(SEQ s) {
+        return new SEQ(stm(s.left), stm(s.right));
+    }
+
+    public Tree visit(LABEL s) {
+        return s;
+    }
+
+    public Tree visit(JUMP s) {
+        return new JUMP(exp(s.exp), s.targets);
+    }
+
+    public Tree visit(MOVE s) {
+        return new MOVE(exp(s.dst), exp(s.src));
+    }
+
+    public Tree visit(EXP s) {
+        return new EXP(exp(s.exp));
+    }
+
+    public Tree visit(CJUMP s) {
+        Exp l = exp(s.left);
+        Exp r = exp(s.right);
+        if (isConst(l) && isConst(r)) {
+            int a = value(l), b = value(r);
+            boolean taken;
+            switch (s.op) {
+            case BEQ: taken = a == b; break;
+            case BNE: taken = a != b; break;
+            case BLT: taken = a < b; break;
+            case BLE: taken = a <= b; break;
+            case BGT: taken = a > b; break;
+            case BGE: taken = a >= b; break;
+            default: throw new Error();
+            }
+            folded++;
+            return new JUMP(taken ? s.iftrue : s.iffalse);
+        }
+        return new CJUMP(s.op, l, r, s.iftrue, s.iffalse);
+    }
+}
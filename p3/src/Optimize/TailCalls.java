@@ -0,0 +1,194 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.*;
+import Translate.Frag;
+import Translate.Frame;
+import Translate.Temp;
+import Translate.Temp.Label;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * Self tail calls to loops, run on the translated trees of a whole module.
+ *
+ * A call of a procedure to itself is a tail call if it is a statement of
+ * the procedure body (not nested in an expression), is either evaluated
+ * for effect or assigned to the return value, and nothing but labels and
+ * jumps lies between it and the return label.  Such a call is replaced by
+ * moves of the actuals into fresh temps, then of the temps into the
+ * formals, and a jump back to the start of the body, which initializes
+ * the locals again just as a new activation would.  The static link of a
+ * procedure calling itself is its own, so it is left alone.
+ *
+ * The new activation reuses the caller's frame, so a call is left alone
+ * if an actual may be the address of something in the frame: a VAR or
+ * READONLY actual, or a structured one, that uses the frame pointer other
+ * than to load from it.
+ */
+public class TailCalls {
+    /**
+     * Number of calls replaced by jumps.
+     */
+    public int eliminated = 0;
+
+    private final List<Frag> frags;
+
+    public TailCalls(List<Frag> frags) {
+        this.frags = frags;
+    }
+
+    public void run() {
+        for (Frag f : frags)
+            if (f instanceof Frag.Proc) {
+                Frag.Proc p = (Frag.Proc) f;
+                if (p.body != null)
+                    p.body = rewrite(p.body, p.frame);
+            }
+    }
+
+    private Stm rewrite(Stm body, Frame f) {
+        ArrayList<Stm> stms = new ArrayList<Stm>();
+        flatten(body, stms);
+        if (stms.isEmpty() || !(stms.get(stms.size() - 1) instanceof LABEL))
+            return body;
+        Label ret = ((LABEL) stms.get(stms.size() - 1)).label;
+        Exp fp = f.FP();
+        Temp fpt = (fp instanceof TEMP) ? ((TEMP) fp).temp : null;
+        HashMap<Label, Integer> at = new HashMap<Label, Integer>();
+        for (int i = 0; i < stms.size(); i++)
+            if (stms.get(i) instanceof LABEL)
+                at.put(((LABEL) stms.get(i)).label, i);
+        Label entry = null;
+        for (int i = 0; i < stms.size(); i++) {
+            CALL c = selfCall(stms.get(i), f);
+            if (c == null || !returns(stms, i + 1, ret, at, new HashSet<Label>()))
+                continue;
+            boolean ok = true;
+            for (Exp a : c.args)
+                ok &= !addresses(a, fpt);
+            if (!ok)
+                continue;
+            if (entry == null)
+                entry = new Label();
+            stms.set(i, jump(c, f, entry));
+            eliminated++;
+        }
+        if (entry == null)
+            return body;
+        Stm s = null;
+        for (int i = stms.size() - 1; i >= 0; i--)
+            s = seq(stms.get(i), s);
+        // the jump gives the start of the body a predecessor like any
+        // other loop header
+        return seq(new JUMP(entry), seq(new LABEL(entry), s));
+    }
+
+    private static void flatten(Stm s, List<Stm> stms) {
+        if (s instanceof SEQ) {
+            flatten(((SEQ) s).left, stms);
+            flatten(((SEQ) s).right, stms);
+        } else if (s != null)
+            stms.add(s);
+    }
+
+    private static Stm seq(Stm a, Stm b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        return new SEQ(a, b);
+    }
+
+    /**
+     * The call of the procedure to itself that s makes for effect or for
+     * the return value, or null.
+     */
+    private static CALL selfCall(Stm s, Frame f) {
+        Exp e = null;
+        if (s instanceof EXP)
+            e = ((EXP) s).exp;
+        else if (s instanceof MOVE && ((MOVE) s).dst instanceof TEMP
+                 && ((MOVE) s).src instanceof CALL) {
+            Exp rv = f.RV();
+            if (rv instanceof TEMP && ((TEMP) ((MOVE) s).dst).temp == ((TEMP) rv).temp)
+                e = ((MOVE) s).src;
+        }
+        if (!(e instanceof CALL))
+            return null;
+        CALL c = (CALL) e;
+        Exp func = c.func;
+        // a devirtualized method call checks its receiver first
+        if (func instanceof ESEQ)
+            func = ((ESEQ) func).exp;
+        if (!(func instanceof NAME) || ((NAME) func).label != f.name)
+            return null;
+        if (c.args.length != f.formals.size())
+            return null;
+        return c;
+    }
+
+    /**
+     * Does control pass from stms[i] to the return label without doing
+     * anything: are there only labels and jumps on the way?
+     */
+    private static boolean returns(List<Stm> stms, int i, Label ret,
+                                   Map<Label, Integer> at, Set<Label> seen) {
+        for (; i < stms.size(); i++) {
+            Stm s = stms.get(i);
+            if (s instanceof LABEL)
+                continue;
+            if (!(s instanceof JUMP) || !(((JUMP) s).exp instanceof NAME))
+                return false;
+            Label l = ((NAME) ((JUMP) s).exp).label;
+            if (l == ret)
+                return true;
+            Integer j = at.get(l);
+            if (j == null || !seen.add(l))
+                return false;
+            i = j;
+        }
+        return true;
+    }
+
+    /**
+     * Does e use the frame pointer fp other than as the base of a load?
+     */
+    private static boolean addresses(Exp e, Temp fp) {
+        if (e instanceof TEMP)
+            return ((TEMP) e).temp == fp;
+        if (e instanceof MEM && ((MEM) e).exp instanceof TEMP)
+            return false;
+        if (e instanceof ESEQ)
+            // the statements of an actual are evaluated in place; only
+            // its value is passed
+            return addresses(((ESEQ) e).exp, fp);
+        for (Exp k : e.kids())
+            if (addresses(k, fp))
+                return true;
+        return false;
+    }
+
+    /**
+     * The actuals of c evaluated in order into the formals of f, then a
+     * jump to entry.
+     */
+    private static Stm jump(CALL c, Frame f, Label entry) {
+        Stm s = null;
+        if (c.func instanceof ESEQ)
+            s = ((ESEQ) c.func).stm;
+        Temp[] t = new Temp[c.args.length];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = new Temp();
+            s = seq(s, new MOVE(new TEMP(t[i]), c.args[i]));
+        }
+        Exp fp = f.FP();
+        int i = 0;
+        for (Frame.Access a : f.formals)
+            s = seq(s, new MOVE(a.exp(fp), new TEMP(t[i++])));
+        return seq(s, new JUMP(entry));
+    }
+}
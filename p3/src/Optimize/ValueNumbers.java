@@ -0,0 +1,411 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Optimize;
+
+import java.util.*;
+import Translate.Temp;
+import Translate.Temp.Label;
+import Translate.Tree.Exp;
+import Translate.Tree.Exp.*;
+import Translate.Tree.Stm;
+import Translate.Tree.Stm.*;
+
+/**
+ * Value numbering over the dominator tree.
+ *
+ * Two expressions have the same number when they apply the same operator
+ * to operands with the same numbers; a temp is numbered by the temp whose
+ * value it holds (its copy representative), and a load by the temp known
+ * to hold the word loaded.  An expression whose number is already held in
+ * a temp is replaced by that temp.  If the earlier occurrence was not
+ * assigned to a temp it is given one, computed just before its statement.
+ *
+ * Within a block an expression stays available until a temp it reads or
+ * the temp holding it is assigned, and a load until the next store or
+ * call.  It is also available in the blocks its block dominates if every
+ * temp involved is assigned only once in the procedure, by a definition
+ * already executed, and it loads nothing but header words (array length
+ * or method suite) of heap pointers, which are never stored to once
+ * allocated.  A load on every path from the last store or call is reused
+ * wherever it is.  Only loads and expressions with two or more operators
+ * (or a multiply or divide) are worth keeping in a temp.
+ */
+public class ValueNumbers extends Facts {
+    /**
+     * Number of expressions replaced by a temp.
+     */
+    public int reused = 0;
+
+    private final Label trap;
+
+    public ValueNumbers(BlockGraph g, Translate.Frame frame) {
+        super(g, frame.wordSize());
+        trap = frame.badPtr();
+    }
+
+    protected void gen(Temp t, Exp src, State s, List<Fact> facts) {
+        heapGen(t, src, facts);
+    }
+
+    protected void branch(CJUMP c, boolean taken, State s) {
+        heapBranch(c, taken, s, trap);
+    }
+
+    /**
+     * A numbered expression, and the temp that holds it.
+     */
+    private static class Value {
+        final String key;
+        // the temps it reads
+        final HashSet<Temp> temps;
+        // does it load a word that a store or call may change?
+        final boolean memory;
+        // where it was first computed, numbering the occurrences in order
+        final int origin;
+        Temp temp = null;
+
+        Value(String k, HashSet<Temp> t, boolean m, int o) {
+            key = k;
+            temps = t;
+            memory = m;
+            origin = o;
+        }
+    }
+
+    // definitions of each temp in the procedure
+    private final HashMap<Temp, Integer> defs = new HashMap<Temp, Integer>();
+    private final HashMap<Temp, Block> home = new HashMap<Temp, Block>();
+    private Dominators dominators;
+
+    // while true, reusable expressions are recorded rather than replaced
+    private boolean finding;
+    private int occurrence;
+    // occurrences that are reused later, and so need a temp of their own
+    private final HashSet<Integer> needed = new HashSet<Integer>();
+
+    // the block being walked, and the temps assigned in it so far
+    private Block block;
+    private HashSet<Temp> passed;
+    // values computed by the statement being walked, and the statements
+    // to put before it
+    private ArrayList<Value> pending;
+    private ArrayList<Stm> before;
+
+    public void run() {
+        for (Block b : graph.nodes())
+            for (Stm s : b.stms)
+                if (s instanceof MOVE && ((MOVE) s).dst instanceof TEMP) {
+                    Temp t = ((TEMP) ((MOVE) s).dst).temp;
+                    Integer n = defs.get(t);
+                    defs.put(t, n == null ? 1 : n + 1);
+                    home.put(t, b);
+                }
+        analyze();
+        dominators = new Dominators(graph);
+        HashMap<Block, List<Block>> children = new HashMap<Block, List<Block>>();
+        for (Block b : graph.nodes()) {
+            Block d = dominators.idom(b);
+            if (d == null)
+                continue;
+            List<Block> l = children.get(d);
+            if (l == null) {
+                l = new ArrayList<Block>();
+                children.put(d, l);
+            }
+            l.add(b);
+        }
+        finding = true;
+        walk(children);
+        finding = false;
+        walk(children);
+    }
+
+    /**
+     * Walk the dominator tree in preorder, each block starting with the
+     * values available throughout the blocks that dominate it.
+     */
+    private void walk(HashMap<Block, List<Block>> children) {
+        occurrence = 0;
+        if (graph.entry == null)
+            return;
+        HashMap<Block, HashMap<String, Value>> inherited =
+            new HashMap<Block, HashMap<String, Value>>();
+        LinkedList<Block> work = new LinkedList<Block>();
+        inherited.put(graph.entry, new HashMap<String, Value>());
+        work.add(graph.entry);
+        while (!work.isEmpty()) {
+            Block b = work.removeFirst();
+            HashMap<String, Value> global = walk(b, inherited.remove(b));
+            List<Block> l = children.get(b);
+            if (l == null)
+                continue;
+            for (int i = l.size() - 1; i >= 0; i--) {
+                inherited.put(l.get(i), global);
+                work.addFirst(l.get(i));
+            }
+        }
+    }
+
+    /**
+     * Walk b, recording or replacing the available expressions.  Returns
+     * the values available in the blocks b dominates.
+     */
+    private HashMap<String, Value> walk(Block b, HashMap<String, Value> inherited) {
+        HashMap<String, Value> avail = new HashMap<String, Value>(inherited);
+        HashMap<String, Value> global = new HashMap<String, Value>(inherited);
+        if (in[b.index()] == null)
+            return global;
+        State s = new State(in[b.index()]);
+        block = b;
+        passed = new HashSet<Temp>();
+        ListIterator<Stm> i = b.stms.listIterator();
+        while (i.hasNext()) {
+            Stm stm = i.next();
+            pending = new ArrayList<Value>();
+            before = new ArrayList<Stm>();
+            Stm r = number(stm, s, avail);
+            if (!before.isEmpty()) {
+                i.previous();
+                for (Stm m : before)
+                    i.add(m);
+                i.next();
+            }
+            if (r != stm)
+                i.set(r);
+            // the facts are those of the original statements
+            step(stm, s);
+            Temp t = null;
+            if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+                t = ((TEMP) ((MOVE) stm).dst).temp;
+                passed.add(t);
+                kill(avail, t);
+            }
+            boolean stores = stores(stm);
+            if (stores)
+                killMemory(avail);
+            for (Value v : pending) {
+                if (t != null && v.temps.contains(t))
+                    continue;   // computed from t's old value
+                if (stores && v.memory)
+                    continue;   // loaded before the store or call
+                avail.put(v.key, v);
+                if (!v.memory && stable(v))
+                    global.put(v.key, v);
+            }
+        }
+        return global;
+    }
+
+    private static void kill(HashMap<String, Value> avail, Temp t) {
+        for (Iterator<Value> i = avail.values().iterator(); i.hasNext();) {
+            Value v = i.next();
+            if (v.temp == t || v.temps.contains(t))
+                i.remove();
+        }
+    }
+
+    private static void killMemory(HashMap<String, Value> avail) {
+        for (Iterator<Value> i = avail.values().iterator(); i.hasNext();)
+            if (i.next().memory)
+                i.remove();
+    }
+
+    private static boolean stores(Stm stm) {
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof MEM)
+            return true;
+        for (Exp e : stm.kids())
+            if (hasCall(e))
+                return true;
+        return false;
+    }
+
+    /**
+     * Does t hold the same value everywhere the current point dominates?
+     */
+    private boolean stable(Temp t) {
+        Integer n = defs.get(t);
+        if (n == null)
+            return true;
+        if (n != 1)
+            return false;
+        Block h = home.get(t);
+        return h == block ? passed.contains(t) : dominators.dominates(h, block);
+    }
+
+    private boolean stable(Value v) {
+        // a temp made for an earlier occurrence is assigned only there
+        if (v.temp != null && defs.containsKey(v.temp) && !stable(v.temp))
+            return false;
+        for (Temp t : v.temps)
+            if (!stable(t))
+                return false;
+        return true;
+    }
+
+    private Stm number(Stm stm, State s, HashMap<String, Value> avail) {
+        if (stm instanceof LABEL)
+            return stm;
+        Temp holder = null;
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+            holder = ((TEMP) ((MOVE) stm).dst).temp;
+        Exp[] kids = stm.kids();
+        boolean changed = false;
+        for (int k = 0; k < kids.length; k++) {
+            Exp e = number(kids[k], s, avail, holder);
+            changed |= e != kids[k];
+            kids[k] = e;
+        }
+        return changed ? stm.build(kids) : stm;
+    }
+
+    /**
+     * Number e, replacing it by a temp if its value is available.  holder
+     * is the temp e is assigned to, if any.
+     */
+    private Exp number(Exp e, State s, HashMap<String, Value> avail, Temp holder) {
+        if (e instanceof MEM) {
+            Temp a = loaded((MEM) e, s);
+            if (a != null) {
+                if (finding || a == holder)
+                    return e;
+                reused++;
+                return new TEMP(a);
+            }
+        }
+        Key k = null;
+        if (e instanceof MEM || e instanceof BINOP) {
+            k = new Key();
+            if (!k.number(e, s))
+                k = null;
+        }
+        if (k != null) {
+            Value v = avail.get(k.key());
+            if (v != null) {
+                if (finding) {
+                    if (v.temp == null)
+                        needed.add(v.origin);
+                    return e;
+                }
+                reused++;
+                return new TEMP(v.temp);
+            }
+        }
+        Exp[] kids = e.kids();
+        boolean changed = false;
+        for (int i = 0; i < kids.length; i++) {
+            Exp r = number(kids[i], s, avail, null);
+            changed |= r != kids[i];
+            kids[i] = r;
+        }
+        Exp r = changed ? e.build(kids) : e;
+        if (k == null || !worth(e))
+            return r;
+        Value v = new Value(k.key(), k.temps, k.memory, occurrence++);
+        pending.add(v);
+        if (holder != null)
+            v.temp = holder;
+        else if (!finding && needed.contains(v.origin)) {
+            v.temp = new Temp();
+            before.add(new MOVE(new TEMP(v.temp), r));
+            return new TEMP(v.temp);
+        }
+        return r;
+    }
+
+    /**
+     * The temp known to hold the word m loads, if any.
+     */
+    private Temp loaded(MEM m, State s) {
+        if (!(m.exp instanceof TEMP))
+            return null;
+        Temp b = s.rep(((TEMP) m.exp).temp);
+        for (Fact f : s.facts)
+            if (f.kind == LOAD && f.b == b && f.k == m.offset.value)
+                return f.a;
+        return null;
+    }
+
+    /**
+     * Is the word m loads never stored to: a header word of a heap
+     * pointer, or an entry of the method suite found there?
+     */
+    private boolean immutable(MEM m, State s) {
+        Exp a = m.exp;
+        if (a instanceof MEM)
+            return immutable((MEM) a, s);
+        return m.offset.value == -wordSize() && a instanceof TEMP
+            && s.has(HEAP, s.rep(((TEMP) a).temp), null, 0);
+    }
+
+    /**
+     * The number of an expression, spelled out, with what it depends on.
+     */
+    private class Key {
+        final StringBuilder b = new StringBuilder();
+        final HashSet<Temp> temps = new HashSet<Temp>();
+        boolean memory = false;
+
+        String key() {
+            return b.toString();
+        }
+
+        /**
+         * Append the number of e; false if e has none.
+         */
+        boolean number(Exp e, State s) {
+            if (e instanceof CONST) {
+                b.append(((CONST) e).value);
+                return true;
+            }
+            if (e instanceof NAME) {
+                b.append(((NAME) e).label);
+                return true;
+            }
+            if (e instanceof TEMP)
+                return temp(s.rep(((TEMP) e).temp));
+            if (e instanceof MEM) {
+                MEM m = (MEM) e;
+                Temp a = loaded(m, s);
+                if (a != null)
+                    return temp(a);
+                memory |= !immutable(m, s);
+                b.append("M(");
+                if (!number(m.exp, s))
+                    return false;
+                b.append(',').append(m.offset.value).append(')');
+                return true;
+            }
+            if (e instanceof BINOP) {
+                BINOP o = (BINOP) e;
+                Key l = new Key(), r = new Key();
+                if (!l.number(o.left, s) || !r.number(o.right, s))
+                    return false;
+                String x = l.key(), y = r.key();
+                switch (o.op) {
+                case ADD: case MUL: case AND: case OR: case XOR:
+                    // commutative: put the operands in a fixed order
+                    if (x.compareTo(y) > 0) {
+                        String t = x;
+                        x = y;
+                        y = t;
+                    }
+                    break;
+                default:
+                    break;
+                }
+                b.append(o.op).append('(').append(x).append(',').append(y).append(')');
+                temps.addAll(l.temps);
+                temps.addAll(r.temps);
+                memory |= l.memory || r.memory;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean temp(Temp t) {
+            b.append('t').append(t.id);
+            temps.add(t);
+            return true;
+        }
+    }
+}
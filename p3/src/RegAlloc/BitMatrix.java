@@ -0,0 +1,60 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package RegAlloc;
+
+/**
+ * A symmetric, irreflexive relation over the integers 0..size-1, stored as
+ * the strictly lower triangle of a bit matrix.  The pair (i, j) with i > j
+ * lives at bit i*(i-1)/2 + j, so the matrix needs size*(size-1)/2 bits.
+ */
+public class BitMatrix {
+    private final long[] bits;
+    public final int size;
+
+    public BitMatrix(int size) {
+        this.size = size;
+        long n = (long) size * (size - 1) / 2;
+        bits = new long[(int) ((n + 63) >>> 6)];
+    }
+
+    /**
+     * A copy of m over 0..size-1, where size is at least m.size: the
+     * pairs of m are at the same bits in the larger triangle.
+     */
+    public BitMatrix(BitMatrix m, int size) {
+        this(size);
+        System.arraycopy(m.bits, 0, bits, 0, m.bits.length);
+    }
+
+    private static long bit(int i, int j) {
+        if (i < j) {
+            int t = i;
+            i = j;
+            j = t;
+        }
+        return (long) i * (i - 1) / 2 + j;
+    }
+
+    public boolean get(int i, int j) {
+        if (i == j)
+            return false;
+        long b = bit(i, j);
+        return (bits[(int) (b >>> 6)] & (1L << b)) != 0;
+    }
+
+    /**
+     * Add the pair (i, j).
+     * @return  true if the pair was not already present
+     */
+    public boolean set(int i, int j) {
+        if (i == j)
+            return false;
+        long b = bit(i, j);
+        int w = (int) (b >>> 6);
+        long m = 1L << b;
+        if ((bits[w] & m) != 0)
+            return false;
+        bits[w] |= m;
+        return true;
+    }
+}
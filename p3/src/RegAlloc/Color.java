@@ -4,82 +4,171 @@ package RegAlloc;
 
 import java.util.*;
 
-import Assem.Instr;
 import Translate.Temp;
-import Translate.Frame.Access;
 
 public class Color {
-	
-	static public class SpillComparator implements Comparator<Node> {
-		@Override
-		public int compare(Node x, Node y) {
-			if (x.spillCost > y.spillCost)
-				return -1;
-			else if (x.spillCost < y.spillCost)
-				return 1;
+
+	/**
+	 * An intrusive doubly-linked list of nodes, all in the same state.
+	 */
+	static class NodeList {
+		final Node.State state;
+		Node head = null, tail = null;
+		int size = 0;
+
+		NodeList(Node.State s) {
+			state = s;
+		}
+
+		boolean isEmpty() {
+			return head == null;
+		}
+
+		void add(Node n) {
+			n.state = state;
+			n.next = null;
+			n.prev = tail;
+			if (tail == null)
+				head = n;
+			else
+				tail.next = n;
+			tail = n;
+			size++;
+		}
+
+		void remove(Node n) {
+			assert n.state == state;
+			if (n.prev == null)
+				head = n.next;
+			else
+				n.prev.next = n.next;
+			if (n.next == null)
+				tail = n.prev;
+			else
+				n.next.prev = n.prev;
+			n.prev = n.next = null;
+			size--;
+		}
+	}
+
+	/**
+	 * An intrusive doubly-linked list of moves, all in the same state.
+	 */
+	static class MoveList {
+		final Move.State state;
+		Move head = null, tail = null;
+		int size = 0;
+
+		MoveList(Move.State s) {
+			state = s;
+		}
+
+		boolean isEmpty() {
+			return head == null;
+		}
+
+		void add(Move m) {
+			m.state = state;
+			m.next = null;
+			m.prev = tail;
+			if (tail == null)
+				head = m;
+			else
+				tail.next = m;
+			tail = m;
+			size++;
+		}
+
+		void remove(Move m) {
+			assert m.state == state;
+			if (m.prev == null)
+				head = m.next;
+			else
+				m.prev.next = m.next;
+			if (m.next == null)
+				tail = m.prev;
 			else
-				return 0;
+				m.next.prev = m.prev;
+			m.prev = m.next = null;
+			size--;
 		}
 	}
-	public LinkedList<Node> simplifyWorklist = new LinkedList<Node>(),  
-			freezeWorklist = new LinkedList<Node>();
-	Comparator<Node> comparator = new SpillComparator();
-	public PriorityQueue<Node> spillWorklist = new PriorityQueue<Node>(20, comparator);
+
 	private int K = 0;
-	private Liveness ig = null;
+	private InterferenceGraph ig = null;
 	private Translate.Frame frame;
-	private Stack <Node> selectStack = new Stack <Node> ();
-	private LinkedHashMap<Node, Node> alias = new LinkedHashMap<Node, Node>();
-	
+
 	//nodes
-    //private Set <Node> precolored = new LinkedHashSet <Node> ();
-	private Set <Node> initial = new LinkedHashSet <Node> ();
-	private Set <Node> spilledNodes = new LinkedHashSet <Node> (),
-		coalescedNodes = new LinkedHashSet <Node> (), coloredNodes = new LinkedHashSet <Node> ();
-	
+	private NodeList simplifyWorklist = new NodeList(Node.State.SIMPLIFY),
+		freezeWorklist = new NodeList(Node.State.FREEZE),
+		spillWorklist = new NodeList(Node.State.SPILL),
+		spilledNodes = new NodeList(Node.State.SPILLED),
+		coalescedNodes = new NodeList(Node.State.COALESCED),
+		coloredNodes = new NodeList(Node.State.COLORED),
+		selectStack = new NodeList(Node.State.SELECT);
+
 	// moves
-	private Set <Move> activeMoves = new LinkedHashSet<Move>(), frozenMoves = new LinkedHashSet<Move>(),
-				constrainedMoves = new LinkedHashSet<Move>(), coalescedMoves = new LinkedHashSet<Move>();
-	public LinkedList<Move> worklistMoves = new LinkedList <Move> ();
-	
+	private MoveList coalescedMoves = new MoveList(Move.State.COALESCED),
+		constrainedMoves = new MoveList(Move.State.CONSTRAINED),
+		frozenMoves = new MoveList(Move.State.FROZEN),
+		worklistMoves = new MoveList(Move.State.WORKLIST),
+		activeMoves = new MoveList(Move.State.ACTIVE);
+
+	// register -> position in frame.registers(), for AssignColors
+	private HashMap<Temp, Integer> registers = new HashMap<Temp, Integer>();
+	private boolean[] okColors;
+	private int stamp = 0;
+
     public Set<Temp> spills() {
     	LinkedHashSet<Temp> spilledTemps = new LinkedHashSet<Temp>();
-    	for (Node n : spilledNodes) {
+    	for (Node n = spilledNodes.head; n != null; n = n.next) {
     		spilledTemps.add(n.temp);
     	}
     	return spilledTemps;
     }
-    
-    public Set<Move> NodeMoves(Node n) {
-    	LinkedHashSet<Move> nmoves = new LinkedHashSet<Move>(worklistMoves);
-    	nmoves.addAll(activeMoves);
-    	nmoves.retainAll(n.moveList);
-    	return nmoves;
+
+    /**
+     * The number of nodes chosen as potential spills.
+     */
+    int candidates = 0;
+
+    /**
+     * The number of moves eliminated by coalescing.
+     */
+    int coalesced() {
+    	return coalescedMoves.size;
     }
 
-    public boolean MoveRelated(Node n) {
-    	return !NodeMoves(n).isEmpty();
+    private static boolean isNodeMove(Move m) {
+    	return m.state == Move.State.ACTIVE || m.state == Move.State.WORKLIST;
     }
 
-    private Set<Node> Adjacent(Node n) {
-    	LinkedHashSet<Node> adj = new LinkedHashSet<Node>(n.adjList);
-    	adj.removeAll(selectStack);
-    	adj.removeAll(coalescedNodes);
-    	return adj;
+    private static boolean isAdjacent(Node t) {
+    	return t.state != Node.State.SELECT && t.state != Node.State.COALESCED;
     }
-    
-    public Color(Liveness ig_param, Translate.Frame frame_param) {
+
+    public boolean MoveRelated(Node n) {
+    	for (Move m : n.moveList)
+    		if (isNodeMove(m))
+    			return true;
+    	return false;
+    }
+
+    public Color(InterferenceGraph ig_param, Translate.Frame frame_param) {
 		// Color each node of the interference graph ig with a register,
 		// respecting the interference edges.  The colors are the
 		// frame.registers().
 	    // Any actual spills must be returned by the callback to spills().
 	    ig = ig_param;
 	    frame = frame_param;
-	    worklistMoves.addAll(ig.moves());
-	    initial.addAll(ig.nodes());
-	    initial.removeAll(ig.precolored);
+	    Temp[] regs = frame.registers();
+	    for (int i = 0; i < regs.length; i++)
+	    	registers.put(regs[i], i);
+	    okColors = new boolean[regs.length];
+	    for (Move m : ig.moves())
+	    	worklistMoves.add(m);
     	MkWorklist();
-	    
+
 	    do {
 	    	if (!simplifyWorklist.isEmpty()) Simplify();
 	    	else if (!worklistMoves.isEmpty()) Coalesce();
@@ -87,14 +176,16 @@ public class Color {
 	    	else if (!spillWorklist.isEmpty()) SelectSpill();
 	    } while (!simplifyWorklist.isEmpty() || !worklistMoves.isEmpty() ||
 	    		 !spillWorklist.isEmpty() || !freezeWorklist.isEmpty());
-	    
+
 	    AssignColors();
     }
-    
+
     public void MkWorklist() {
     	K = ig.precolored.size();
-    	for (Node n : initial) {
-    		if (n.degree > K) {
+    	for (Node n : ig.nodes()) {
+    		if (n.state != Node.State.INITIAL)
+    			continue;
+    		if (n.degree >= K) {
     			spillWorklist.add(n);
     		} else if (MoveRelated(n)) {
     			freezeWorklist.add(n);
@@ -103,25 +194,36 @@ public class Color {
     		}
     	}
     }
-    
+
     private void Simplify() {
-    	Node n = simplifyWorklist.getFirst();
-    	simplifyWorklist.remove();
-    	selectStack.push(n);
-    	for (Node m : Adjacent(n)) {
-    		DecrementDegree(m);
+    	Node n = simplifyWorklist.head;
+    	simplifyWorklist.remove(n);
+    	selectStack.add(n);
+    	for (int i = 0; i < n.adjCount; i++) {
+    		Node m = ig.node(n.adjList[i]);
+    		if (isAdjacent(m))
+    			DecrementDegree(m);
     	}
     }
-    
+
     private void DecrementDegree(Node m) {
+    	if (m.state == Node.State.PRECOLORED)
+    		return;
     	int d = m.degree;
     	m.degree--;
     	if (d == K) {
-    		LinkedHashSet<Node> nodes = new LinkedHashSet<Node>(Adjacent(m));
-    		nodes.add(m);
-    		EnableMoves(nodes);
+    		EnableMoves(m);
+    		for (int i = 0; i < m.adjCount; i++) {
+    			Node n = ig.node(m.adjList[i]);
+    			if (isAdjacent(n))
+    				EnableMoves(n);
+    		}
+    		// a potential spill is already on the simplify worklist, and a
+    		// node being coalesced stays where it is
+    		if (m.state != Node.State.SPILL)
+    			return;
     		spillWorklist.remove(m);
-    		
+
     		if (MoveRelated(m)) {
     			freezeWorklist.add(m);
     		} else {
@@ -129,168 +231,202 @@ public class Color {
     		}
     	}
     }
-    
-    private void EnableMoves(LinkedHashSet<Node> nodes) {
-    	for (Node n : nodes) {
-    		for (Move m : NodeMoves(n)) {
-    			if (activeMoves.contains(m)) {
-    				activeMoves.remove(m);
-    				worklistMoves.add(m);
-    			}
+
+    private void EnableMoves(Node n) {
+    	for (Move m : n.moveList) {
+    		if (m.state == Move.State.ACTIVE) {
+    			activeMoves.remove(m);
+    			worklistMoves.add(m);
     		}
     	}
     }
-    
+
     private void Coalesce() {
-    	Move m = worklistMoves.getFirst();
-    	worklistMoves.remove();
+    	Move m = worklistMoves.head;
+    	worklistMoves.remove(m);
     	Node x = GetAlias(m.dst);
     	Node y = GetAlias(m.src);
     	Node u = null, v = null;
-    	if (ig.precolored.contains(y)) {
+    	if (y.state == Node.State.PRECOLORED) {
     		u = y; v = x;
     	} else {
     		u = x; v = y;
     	}
-    	
+
     	if (u == v) {
     		coalescedMoves.add(m);
     		AddWorklist(u);
-    	} else if (ig.precolored.contains(v) || 
-    			ig.adjSet.contains(new Liveness.Edge(u, v))) {
+    	} else if (v.state == Node.State.PRECOLORED || ig.interferes(u, v)) {
     		constrainedMoves.add(m);
     		AddWorklist(u);
     		AddWorklist(v);
-    	} else if(ig.precolored.contains(u)) {
-    		boolean flag = true;
-    		for (Node t : Adjacent(v)) {
-    			if (! OK(t, u)) {
-    				flag = false;
-    				break;
-    			}
-    		}
-    		if (flag) {
-    			coalescedMoves.add(m);
-    			Combine(u, v);
-    			AddWorklist(u);
-    		}
-    	} else if (!ig.precolored.contains(u)) {
-    		boolean flag = false;
-    		//Brigg's conservative coalescing heuristic
-    		LinkedHashSet<Node> coalescedAdj = new LinkedHashSet<Node>(Adjacent(u));
-    		coalescedAdj.addAll(Adjacent(v));
-    		int numSigNodes = 0;
-    		for (Node n : coalescedAdj) {
-    			if (n.degree >= K) numSigNodes++;
-    		}
-    		if (numSigNodes < K) flag = true;
-    		
-    		if (flag) {
-	    		coalescedMoves.add(m);
-	    		Combine(u, v);
-	    		AddWorklist(u);
-    		}
+    	} else if (u.state == Node.State.PRECOLORED ? George(u, v) : Briggs(u, v)) {
+    		coalescedMoves.add(m);
+    		Combine(u, v);
+    		AddWorklist(u);
     	} else {
     		activeMoves.add(m);
     	}
     }
-    
+
+    /**
+     * George's test: every neighbor t of v is OK with precolored u.
+     */
+    private boolean George(Node u, Node v) {
+    	for (int i = 0; i < v.adjCount; i++) {
+    		Node t = ig.node(v.adjList[i]);
+    		if (isAdjacent(t) && !OK(t, u))
+    			return false;
+    	}
+    	return true;
+    }
+
+    /**
+     * Briggs's conservative test: Adjacent(u) + Adjacent(v) has fewer than
+     * K nodes of significant degree.
+     */
+    private boolean Briggs(Node u, Node v) {
+    	int k = 0;
+    	stamp++;
+    	for (int i = 0; i < u.adjCount; i++) {
+    		Node n = ig.node(u.adjList[i]);
+    		if (isAdjacent(n) && n.mark != stamp) {
+    			n.mark = stamp;
+    			if (n.degree >= K) k++;
+    		}
+    	}
+    	for (int i = 0; i < v.adjCount; i++) {
+    		Node n = ig.node(v.adjList[i]);
+    		if (isAdjacent(n) && n.mark != stamp) {
+    			n.mark = stamp;
+    			if (n.degree >= K) k++;
+    		}
+    	}
+    	return k < K;
+    }
+
     private void Combine(Node u, Node v) {
-    	if (freezeWorklist.contains(v))
+    	if (v.state == Node.State.FREEZE)
     		freezeWorklist.remove(v);
     	else
     		spillWorklist.remove(v);
-    	
+
     	coalescedNodes.add(v);
-    	alias.put(v, u);
-    	//TODO: typo in the paper?
-    	u.moveList.addAll(v.moveList);
-    	
-    	for (Node t : Adjacent(v)) {
+    	v.alias = u;
+    	u.spillCost += v.spillCost;
+    	for (Move m : v.moveList)
+    		if (isNodeMove(m))
+    			u.moveList.add(m);
+    	EnableMoves(v);
+
+    	for (int i = 0; i < v.adjCount; i++) {
+    		Node t = ig.node(v.adjList[i]);
+    		if (!isAdjacent(t))
+    			continue;
     		ig.addEdge(t, u);
     		DecrementDegree(t);
     	}
-    	
-    	if ((u.degree >= K) && freezeWorklist.contains(u)) {
+
+    	if ((u.degree >= K) && u.state == Node.State.FREEZE) {
     		freezeWorklist.remove(u);
     		spillWorklist.add(u);
     	}
     }
-    
+
     private boolean OK(Node t, Node r) {
-    	return (t.degree < K) || (ig.precolored.contains(t)) 
-    			|| ig.adjSet.contains(new Liveness.Edge(t, r)); 
+    	return (t.degree < K) || (t.state == Node.State.PRECOLORED)
+    			|| ig.interferes(t, r);
     }
-    
+
     private void AddWorklist(Node u) {
-    	if (!ig.precolored.contains(u) && !MoveRelated(u) && (u.degree < K)) {
+    	if (u.state != Node.State.PRECOLORED && !MoveRelated(u) && (u.degree < K)) {
     		freezeWorklist.remove(u);
     		simplifyWorklist.add(u);
     	}
     }
-    
+
     private Node GetAlias(Node n) {
-    	if (coalescedNodes.contains(n)) {
-    		return GetAlias(alias.get(n));
-    	} else {
-    		return n;
-    	}
+    	while (n.state == Node.State.COALESCED)
+    		n = n.alias;
+    	return n;
     }
-    
+
     private void Freeze() {
-    	Node u = freezeWorklist.getFirst();
-    	freezeWorklist.remove();
+    	Node u = freezeWorklist.head;
+    	freezeWorklist.remove(u);
     	simplifyWorklist.add(u);
     	FreezeMoves(u);
     }
-    
+
     private void FreezeMoves(Node u) {
     	for (Move m : u.moveList) {
-    		if (m.dst == u || m.src == u) {
-    			Node v = null;
-    			if (m.dst == u) v = m.src;
-    			else v = m.dst;
-    			
-    			if (activeMoves.contains(m))
-    				activeMoves.remove(m);
-    			else
-    				worklistMoves.remove(m);
-    			frozenMoves.add(m);
-    			if (v.moveList.isEmpty() && v.degree < K) {
-    				freezeWorklist.remove(v);
-    				simplifyWorklist.remove(v);
-    			}
+    		if (!isNodeMove(m))
+    			continue;
+    		Node x = m.dst, y = m.src;
+    		Node v;
+    		if (GetAlias(y) == GetAlias(u))
+    			v = GetAlias(x);
+    		else
+    			v = GetAlias(y);
+
+    		if (m.state == Move.State.ACTIVE)
+    			activeMoves.remove(m);
+    		else
+    			worklistMoves.remove(m);
+    		frozenMoves.add(m);
+    		if (v.state == Node.State.FREEZE && !MoveRelated(v) && v.degree < K) {
+    			freezeWorklist.remove(v);
+    			simplifyWorklist.add(v);
     		}
     	}
     }
 
+    /**
+     * Choose the potential spill with the least spill cost per interfering
+     * node.  Unspillable temps are chosen only if nothing else is left, and
+     * then the one of highest degree, since it is the likeliest to be
+     * colored after all.
+     */
     private void SelectSpill() {
-    	Node m = spillWorklist.remove();
-    	//spillWorklist.remove();
+    	Node m = null;
+    	for (Node n = spillWorklist.head; n != null; n = n.next)
+    		if (m == null || priority(n) < priority(m)
+    				|| (priority(n) == priority(m) && n.degree > m.degree))
+    			m = n;
+    	spillWorklist.remove(m);
+    	candidates++;
     	simplifyWorklist.add(m);
     	FreezeMoves(m);
     }
-    
+
+    private static double priority(Node n) {
+    	return n.spillCost / n.degree;
+    }
+
     private void AssignColors() {
     	while (!selectStack.isEmpty()) {
-    		Node n = selectStack.pop();
-    		LinkedHashSet<Temp> okColor = ig.ArrayToSet(frame.registers());
-    		for (Node w : n.adjList) {
-    			Node aw = GetAlias(w);
-    			if (coloredNodes.contains(aw) || ig.precolored.contains(aw)) {
-    				okColor.remove(aw.color);
-    			}
-    			if (okColor.isEmpty()) {
-    				spilledNodes.add(n);
-    			} else {
-    				coloredNodes.add(n);
-    				n.color = okColor.iterator().next();
+    		Node n = selectStack.tail;
+    		selectStack.remove(n);
+    		Arrays.fill(okColors, true);
+    		for (int i = 0; i < n.adjCount; i++) {
+    			Node aw = GetAlias(ig.node(n.adjList[i]));
+    			if (aw.state == Node.State.COLORED || aw.state == Node.State.PRECOLORED) {
+    				okColors[registers.get(aw.color)] = false;
     			}
     		}
+    		int c = 0;
+    		while (c < okColors.length && !okColors[c])
+    			c++;
+    		if (c == okColors.length) {
+    			spilledNodes.add(n);
+    		} else {
+    			coloredNodes.add(n);
+    			n.color = frame.registers()[c];
+    		}
     	}
-    	
-    	for (Node n : coalescedNodes)
+
+    	for (Node n = coalescedNodes.head; n != null; n = n.next)
     		n.color = GetAlias(n).color;
     }
-    
+
 }
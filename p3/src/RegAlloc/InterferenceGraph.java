@@ -8,4 +8,33 @@ import Graph.Graph;
 
 public abstract class InterferenceGraph extends Graph<Temp, Node> {
     public abstract List<Move> moves();
+
+    public Set<Node> precolored = new LinkedHashSet<Node>();
+
+    private final ArrayList<Node> byIndex = new ArrayList<Node>();
+
+    @Override
+    public Node put(Temp t, Node n) {
+        Node old = super.put(t, n);
+        if (old != n)
+            byIndex.add(n);
+        return old;
+    }
+
+    /**
+     * The node with the given index.
+     */
+    public Node node(int index) {
+        return byIndex.get(index);
+    }
+
+    /**
+     * Do nodes u and v interfere?
+     */
+    public abstract boolean interferes(Node u, Node v);
+
+    /**
+     * Record that nodes u and v interfere.
+     */
+    public abstract void addEdge(Node u, Node v);
 }
@@ -0,0 +1,256 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package RegAlloc;
+
+import java.util.*;
+
+import Assem.Instr;
+import FlowGraph.AssemFlowGraph;
+import FlowGraph.AssemNode;
+import Translate.Temp;
+
+/**
+ * Liveness analysis over the blocks of a flow graph using bit vectors.
+ *
+ * Temporaries are numbered densely in order of first appearance, and the
+ * live-in, live-out, def and use sets of each block are packed into long[]
+ * words indexed by that number.  The equations are solved with a worklist
+ * seeded in postorder (reverse postorder of the reversed graph), so a block
+ * is revisited only when the live-in set of one of its successors changes.
+ */
+public class LiveBits {
+    /**
+     * The temporaries of the procedure, by number.
+     */
+    public Temp[] temps;
+    // temp id -> number + 1 (0 for temps not in the procedure); ids are
+    // per compilation, so this is bounded by the temps of the module
+    private int[] numbers = new int[Temp.count()];
+
+    /**
+     * Words per bit vector.
+     */
+    public int words;
+
+    /**
+     * Per-block bit vectors, indexed by flow graph node index.
+     */
+    public long[][] in, out, def, use;
+
+    public LiveBits(AssemFlowGraph flow) {
+        ArrayList<Temp> list = new ArrayList<Temp>();
+        for (AssemNode n : flow.nodes())
+            for (Instr i : n.instrs) {
+                for (Temp t : i.def)
+                    number(t, list);
+                for (Temp t : i.use)
+                    number(t, list);
+            }
+        temps = list.toArray(new Temp[list.size()]);
+        words = words(temps.length);
+
+        int size = flow.size();
+        in = new long[size][words];
+        out = new long[size][words];
+        def = new long[size][words];
+        use = new long[size][words];
+        AssemNode[] blocks = new AssemNode[size];
+        for (AssemNode n : flow.nodes()) {
+            int b = n.index();
+            blocks[b] = n;
+            for (Temp t : flow.def(n))
+                set(def[b], number(t));
+            for (Temp t : flow.use(n))
+                set(use[b], number(t));
+            // in = use, until the solver says otherwise
+            System.arraycopy(use[b], 0, in[b], 0, words);
+        }
+
+        solve(blocks, postorder(flow, blocks));
+    }
+
+    /**
+     * Bring the solution up to date after the instructions of the blocks
+     * in changed have been rewritten by a spill round: the removed temps
+     * occur nowhere any more, and any new temps occur only in the changed
+     * blocks.  Only the changed blocks are seeded into the solver, so the
+     * others are revisited only if their live-out sets change.
+     */
+    public void update(AssemFlowGraph flow, Collection<AssemNode> changed,
+                       Collection<Temp> removed) {
+        if (numbers.length < Temp.count())
+            numbers = Arrays.copyOf(numbers, Temp.count());
+        ArrayList<Temp> list = new ArrayList<Temp>(Arrays.asList(temps));
+        for (AssemNode n : changed)
+            for (Instr i : n.instrs) {
+                for (Temp t : i.def)
+                    number(t, list);
+                for (Temp t : i.use)
+                    number(t, list);
+            }
+        temps = list.toArray(new Temp[list.size()]);
+        int w = words(temps.length);
+        if (w != words) {
+            words = w;
+            for (long[][] v : new long[][][] { in, out, def, use })
+                for (int b = 0; b < v.length; b++)
+                    v[b] = Arrays.copyOf(v[b], w);
+        }
+        for (Temp t : removed) {
+            int r = number(t);
+            if (r < 0)
+                continue;
+            for (int b = 0; b < in.length; b++) {
+                clear(in[b], r);
+                clear(out[b], r);
+            }
+        }
+        AssemNode[] blocks = new AssemNode[flow.size()];
+        for (AssemNode n : flow.nodes())
+            blocks[n.index()] = n;
+        int[] order = new int[changed.size()];
+        int k = 0;
+        for (AssemNode n : changed) {
+            int b = n.index();
+            order[k++] = b;
+            Arrays.fill(def[b], 0);
+            Arrays.fill(use[b], 0);
+            for (Temp t : flow.def(n))
+                set(def[b], number(t));
+            for (Temp t : flow.use(n))
+                set(use[b], number(t));
+        }
+        solve(blocks, order);
+    }
+
+    private void number(Temp t, ArrayList<Temp> list) {
+        if (numbers[t.id] != 0)
+            return;
+        list.add(t);
+        numbers[t.id] = list.size();
+    }
+
+    /**
+     * The number of temporary t, or -1 if t does not occur in the procedure.
+     */
+    public int number(Temp t) {
+        return t.id < numbers.length ? numbers[t.id] - 1 : -1;
+    }
+
+    /**
+     * Blocks in postorder of a depth-first walk from the entry, followed by
+     * any blocks unreachable from the entry.
+     */
+    private static int[] postorder(AssemFlowGraph flow, AssemNode[] blocks) {
+        int size = blocks.length;
+        int[] order = new int[size];
+        int count = 0;
+        boolean[] visited = new boolean[size];
+        // explicit stack of (block, next successor) to avoid deep recursion
+        AssemNode[] stack = new AssemNode[size];
+        int[] next = new int[size];
+        for (AssemNode root : flow.nodes()) {
+            if (visited[root.index()])
+                continue;
+            int sp = 0;
+            stack[sp] = root;
+            next[sp] = 0;
+            visited[root.index()] = true;
+            while (sp >= 0) {
+                AssemNode n = stack[sp];
+                if (next[sp] < n.succs.size()) {
+                    AssemNode s = n.succs.get(next[sp]++);
+                    if (!visited[s.index()]) {
+                        visited[s.index()] = true;
+                        stack[++sp] = s;
+                        next[sp] = 0;
+                    }
+                } else {
+                    order[count++] = n.index();
+                    sp--;
+                }
+            }
+        }
+        return order;
+    }
+
+    private void solve(AssemNode[] blocks, int[] order) {
+        int size = blocks.length;
+        // circular worklist queue, initially the blocks in order
+        int[] queue = new int[size];
+        boolean[] queued = new boolean[size];
+        for (int i = 0; i < order.length; i++) {
+            queue[i] = order[i];
+            queued[order[i]] = true;
+        }
+        int head = 0, count = order.length;
+        while (count > 0) {
+            int b = queue[head];
+            head = (head + 1) % size;
+            count--;
+            queued[b] = false;
+
+            // out[b] = union of in[s] for s in succ(b)
+            long[] o = out[b];
+            AssemNode n = blocks[b];
+            for (AssemNode s : n.succs) {
+                long[] si = in[s.index()];
+                for (int w = 0; w < words; w++)
+                    o[w] |= si[w];
+            }
+            // in[b] = use[b] + (out[b] - def[b])
+            long[] i = in[b], u = use[b], d = def[b];
+            boolean changed = false;
+            for (int w = 0; w < words; w++) {
+                long x = u[w] | (o[w] & ~d[w]);
+                if (x != i[w]) {
+                    i[w] = x;
+                    changed = true;
+                }
+            }
+            if (!changed)
+                continue;
+            for (AssemNode p : n.preds) {
+                int pb = p.index();
+                if (queued[pb])
+                    continue;
+                queued[pb] = true;
+                queue[(head + count) % size] = pb;
+                count++;
+            }
+        }
+    }
+
+    static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    static void set(long[] v, int i) {
+        v[i >>> 6] |= 1L << i;
+    }
+
+    static void clear(long[] v, int i) {
+        v[i >>> 6] &= ~(1L << i);
+    }
+
+    static boolean get(long[] v, int i) {
+        return (v[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * The first set bit at or after i, or -1 if there is none.
+     */
+    static int next(long[] v, int i) {
+        int w = i >>> 6;
+        if (w >= v.length)
+            return -1;
+        long x = v[w] & (-1L << i);
+        for (;;) {
+            if (x != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(x);
+            if (++w == v.length)
+                return -1;
+            x = v[w];
+        }
+    }
+}
@@ -14,9 +14,20 @@ public class Liveness extends InterferenceGraph {
         return moves;
     }
     
-    public Set <Node> precolored = new LinkedHashSet <Node> ();
 	//edge, node related variables
-	public LinkedHashSet<Edge> adjSet = new LinkedHashSet<Edge>();
+	BitMatrix adjSet;
+	// number of distinct interference edges
+	int edges = 0;
+
+	// kept for update(), with liveness in bit vectors only
+	private FlowGraph.AssemFlowGraph flow;
+	private LiveBits live;
+	private SpillCost costs;
+	// the graph as saved before coloring
+	private BitMatrix savedSet;
+	private int savedEdges;
+	// nodes of temps spilled by earlier rounds, which occur no more
+	final Set<Node> dead = new HashSet<Node>();
 	
 	public LinkedHashSet<Temp> ArrayToSet(Temp[] arr){
 		LinkedHashSet<Temp> set = new LinkedHashSet<Temp>(Arrays.asList(arr));
@@ -35,6 +46,24 @@ public class Liveness extends InterferenceGraph {
 	}
 	
     public Liveness(FlowGraph.AssemFlowGraph flow, Translate.Frame frame) {
+    	this(flow, frame, RegAlloc.bitLiveness);
+    }
+
+    public Liveness(FlowGraph.AssemFlowGraph flow, Translate.Frame frame,
+    		boolean bits) {
+    	Precolor(frame);
+    	if (bits) {
+    		this.flow = flow;
+    		live = new LiveBits(flow);
+    		for (Temp t : live.temps)
+    			getNode(t);
+    		adjSet = new BitMatrix(size());
+    		Build(flow, live);
+    		costs = new SpillCost(flow, frame);
+    		costs.apply(flow, this);
+    		return;
+    	}
+
     	//Liveness analysis for the CFG
     	
     	boolean repeat;
@@ -69,17 +98,30 @@ public class Liveness extends InterferenceGraph {
     		
     	} while(repeat);
     	
+    	for (AssemNode n : flow.nodes())
+    		for (Instr i : n.instrs) {
+    			for (Temp t : i.def)
+    				getNode(t);
+    			for (Temp t : i.use)
+    				getNode(t);
+    		}
+    	adjSet = new BitMatrix(size());
+    	Build(flow);
+    	new SpillCost(flow, frame).apply(flow, this);
+    }
+
+    private void Precolor(Translate.Frame frame) {
     	//assign precolor registers
     	LinkedHashSet<Temp> precolorTemp = ArrayToSet(frame.registers());
     	for ( Temp t : precolorTemp) {
     		Node n = new Node(this, t);
     		n.color = t;
+    		n.state = Node.State.PRECOLORED;
+    		// precolored nodes have "infinite" degree
+    		n.degree = Integer.MAX_VALUE;
 			put(t, n);
 			precolored.add(n);
     	}
-    	
-    	Build(flow);
-
     }
     
     private void Build(FlowGraph.AssemFlowGraph flow) {
@@ -107,8 +149,6 @@ public class Liveness extends InterferenceGraph {
 				
 				for (Temp l : live){
 					Node ln = getNode(l);
-					//TODO spill cost
-					ln.spillCost++;
 					for (Temp d : inst.def){
 						Node dn = getNode(d);
 						addEdge(dn, ln);
@@ -121,16 +161,168 @@ public class Liveness extends InterferenceGraph {
 		}
 	}
     
+    private void Build(FlowGraph.AssemFlowGraph flow, LiveBits bits) {
+    	long[] live = new long[bits.words];
+    	Node[] nodes = new Node[bits.temps.length];
+    	for (int t = 0; t < nodes.length; t++)
+    		nodes[t] = getNode(bits.temps[t]);
+		for (AssemNode b : flow.nodes()) {
+			System.arraycopy(bits.out[b.index()], 0, live, 0, bits.words);
+			for (int i = b.instrs.size() - 1; i >= 0; i--) {
+				Instr inst = b.instrs.get(i);
+				
+				if (inst instanceof Instr.MOVE) {
+					for (Temp u : inst.use)
+						LiveBits.clear(live, bits.number(u));
+					Node s = nodes[bits.number(((Instr.MOVE) inst).src())];
+					Node d = nodes[bits.number(((Instr.MOVE) inst).dst())];
+					Move m = new Move(s, d);
+					moves.add(m);
+					d.moveList.add(m);
+					if (s != d)
+						s.moveList.add(m);
+				}
+				
+				for (Temp d : inst.def)
+					LiveBits.set(live, bits.number(d));
+				
+				for (int l = LiveBits.next(live, 0); l >= 0; l = LiveBits.next(live, l + 1)) {
+					Node ln = nodes[l];
+					for (Temp d : inst.def)
+						addEdge(nodes[bits.number(d)], ln);
+				}
+				
+				for (Temp d : inst.def)
+					LiveBits.clear(live, bits.number(d));
+				for (Temp u : inst.use)
+					LiveBits.set(live, bits.number(u));
+			}
+		}
+	}
+    
+    /**
+     * Can the graph be updated after a spill round rather than built
+     * again?
+     */
+    boolean updatable() {
+    	return live != null;
+    }
+
+    /**
+     * Remember the graph as built, so that update() can undo what coloring
+     * does to it.
+     */
+    void save() {
+    	savedSet = new BitMatrix(adjSet, adjSet.size);
+    	savedEdges = edges;
+    	for (Node n : nodes())
+    		n.save();
+    }
+
+    private void restore() {
+    	adjSet = new BitMatrix(savedSet, savedSet.size);
+    	edges = savedEdges;
+    	for (Node n : nodes()) {
+    		n.restore(precolored.contains(n));
+    		if (dead.contains(n))
+    			n.state = Node.State.SPILLED;
+    	}
+    	for (Move m : moves) {
+    		m.state = Move.State.WORKLIST;
+    		m.prev = m.next = null;
+    	}
+    }
+
+    /**
+     * Bring the graph up to date after a spill round has rewritten the
+     * instructions of the blocks in changed, instead of building it again:
+     * undo the last coloring, delete the nodes and moves of the spilled
+     * temps, update liveness from the changed blocks, and add the nodes,
+     * edges and moves of the new temps.  The new temps are live only
+     * within the changed blocks, so only those blocks are walked.
+     */
+    void update(Set<Temp> spills, Collection<AssemNode> changed) {
+    	restore();
+    	for (Temp t : spills) {
+    		Node s = get(t);
+    		for (int i = 0; i < s.adjCount; i++) {
+    			Node a = node(s.adjList[i]);
+    			a.removeAdj(s);
+    			if (a.state != Node.State.PRECOLORED)
+    				a.degree--;
+    			edges--;
+    		}
+    		s.adjCount = 0;
+    		s.degree = 0;
+    		s.state = Node.State.SPILLED;
+    		dead.add(s);
+    	}
+    	for (Iterator<Move> i = moves.iterator(); i.hasNext();) {
+    		Move m = i.next();
+    		if (dead.contains(m.src) || dead.contains(m.dst)) {
+    			i.remove();
+    			m.src.moveList.remove(m);
+    			m.dst.moveList.remove(m);
+    		}
+    	}
+
+    	int first = size();
+    	live.update(flow, changed, spills);
+    	for (Temp t : live.temps)
+    		getNode(t);
+    	adjSet = new BitMatrix(adjSet, size());
+    	long[] l = new long[live.words];
+    	for (AssemNode b : changed) {
+    		System.arraycopy(live.out[b.index()], 0, l, 0, live.words);
+    		for (Iterator<Instr> i = b.instrs.descendingIterator(); i.hasNext();) {
+    			Instr inst = i.next();
+    			if (inst instanceof Instr.MOVE) {
+    				for (Temp u : inst.use)
+    					LiveBits.clear(l, live.number(u));
+    				Node s = get(((Instr.MOVE) inst).src());
+    				Node d = get(((Instr.MOVE) inst).dst());
+    				if (s.index() >= first || d.index() >= first) {
+    					Move m = new Move(s, d);
+    					moves.add(m);
+    					d.moveList.add(m);
+    					if (s != d)
+    						s.moveList.add(m);
+    				}
+    			}
+    			for (Temp d : inst.def)
+    				LiveBits.set(l, live.number(d));
+    			for (int x = LiveBits.next(l, 0); x >= 0; x = LiveBits.next(l, x + 1)) {
+    				Node ln = get(live.temps[x]);
+    				for (Temp d : inst.def) {
+    					Node dn = get(d);
+    					if (dn.index() >= first || ln.index() >= first)
+    						addEdge(dn, ln);
+    				}
+    			}
+    			for (Temp d : inst.def)
+    				LiveBits.clear(l, live.number(d));
+    			for (Temp u : inst.use)
+    				LiveBits.set(l, live.number(u));
+    		}
+    	}
+    	for (Node n : nodes())
+    		n.spillCost = 0;
+    	costs.apply(flow, this);
+    }
+
+    public boolean interferes(Node n0, Node n1) {
+    	return adjSet.get(n0.index(), n1.index());
+    }
+
     public void addEdge(Node n0, Node n1) {
-    	if (n0 != n1) {
-    		adjSet.add(new Edge(n0, n1));
-    		adjSet.add(new Edge(n1, n0));
-    		if (!precolored.contains(n0)) {
-    			n0.adjList.add(n1);
+    	if (adjSet.set(n0.index(), n1.index())) {
+    		edges++;
+    		if (n0.state != Node.State.PRECOLORED) {
+    			n0.addAdj(n1);
     			n0.degree++;
     		}
-    		if (!precolored.contains(n1)) {
-    			n1.adjList.add(n0);
+    		if (n1.state != Node.State.PRECOLORED) {
+    			n1.addAdj(n0);
     			n1.degree++;
     		}
     	}
@@ -140,8 +332,8 @@ public class Liveness extends InterferenceGraph {
         for (Node n : nodes()) {
             out.print(n.temp.toString());
             out.print(": ");
-            for (Node s : n.succs) {
-                out.print(s.temp.toString());
+            for (int i = 0; i < n.adjCount; i++) {
+                out.print(node(n.adjList[i]).temp.toString());
                 out.print(" ");
             }
             out.println();
@@ -153,25 +345,4 @@ public class Liveness extends InterferenceGraph {
         }
         out.flush();
     }
-    
-    static public class Edge {
-    	public Node u = null;
-    	public Node v = null;
-    	public Edge(Node first, Node second) {
-    		u = first;
-    		v = second;
-    	}
-    	public int hashCode() {
-    		int hashu = u.hashCode();
-    		int hashv = v.hashCode();
-    		return (hashu + hashv) * hashv + hashu;
-    	}
-    	
-    	public boolean equals(Object other) {
-    		if (other instanceof Edge) {
-    			return (this.u == ((Edge)other).u) && (this.v == ((Edge)other).v);
-    		} else
-    			return false;
-    	}
-    }
 }
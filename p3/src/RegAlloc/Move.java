@@ -3,8 +3,19 @@
 package RegAlloc;
 
 public class Move {
+    /**
+     * The move sets of George and Appel; every move is in exactly one.
+     */
+    enum State {
+        COALESCED, CONSTRAINED, FROZEN, WORKLIST, ACTIVE
+    }
+
     public Node src, dst;
 
+    State state = State.WORKLIST;
+    // links for the intrusive worklist holding this move
+    Move prev = null, next = null;
+
     public Move(Node s, Node d) {
         src = s;
         dst = d;
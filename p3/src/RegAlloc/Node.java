@@ -4,21 +4,83 @@ package RegAlloc;
 
 import java.util.*;
 
+import Assem.Instr;
 import Translate.Temp;
 
 public class Node extends Graph.Node<Temp, Node> {
+    /**
+     * The node sets of George and Appel; every node is in exactly one.
+     */
+    enum State {
+        PRECOLORED, INITIAL, SIMPLIFY, FREEZE, SPILL, SPILLED, COALESCED,
+        COLORED, SELECT
+    }
+
     Temp temp;
     Temp color = null;
     double spillCost = 0.0;
+    // the only instruction defining temp, if it can be repeated before
+    // each use instead of reloading a spill
+    Instr remat = null;
     int degree = 0;
-    LinkedHashSet<Move> moveList = new LinkedHashSet<Move>();
-    LinkedHashSet<Node> adjList = new LinkedHashSet<Node>();
+    ArrayList<Move> moveList = new ArrayList<Move>();
+    // indices of interfering nodes (not maintained for precolored nodes)
+    int[] adjList = new int[4];
+    int adjCount = 0;
+
+    State state = State.INITIAL;
+    Node alias = null;
+    // links for the intrusive worklist holding this node
+    Node prev = null, next = null;
+    // scratch stamp for set operations without allocation
+    int mark = 0;
+
+    // the edges, degree and moves as built, before coloring changed them
+    private int[] savedAdj;
+    private int savedDegree;
+    private ArrayList<Move> savedMoves;
 
     Node(InterferenceGraph g, Temp t) {
         super(g, t);
         temp = t;
     }
-    
+
+    void addAdj(Node n) {
+        if (adjCount == adjList.length)
+            adjList = Arrays.copyOf(adjList, adjCount * 2);
+        adjList[adjCount++] = n.index();
+    }
+
+    void removeAdj(Node n) {
+        for (int i = 0; i < adjCount; i++)
+            if (adjList[i] == n.index()) {
+                adjList[i] = adjList[--adjCount];
+                return;
+            }
+    }
+
+    void save() {
+        savedAdj = Arrays.copyOf(adjList, adjCount);
+        savedDegree = degree;
+        savedMoves = new ArrayList<Move>(moveList);
+    }
+
+    /**
+     * Undo coloring: back to the state of the last save().
+     */
+    void restore(boolean precolored) {
+        adjList = Arrays.copyOf(savedAdj, Math.max(savedAdj.length, 4));
+        adjCount = savedAdj.length;
+        degree = savedDegree;
+        moveList = new ArrayList<Move>(savedMoves);
+        state = precolored ? State.PRECOLORED : State.INITIAL;
+        if (!precolored)
+            color = null;
+        alias = null;
+        prev = next = null;
+        mark = 0;
+    }
+
     @Override public String toString() {
     	return temp.toString();
     }
@@ -4,19 +4,64 @@ package RegAlloc;
 
 import java.util.*;
 
-import Translate.Frame;
 import Translate.Temp;
-import Translate.Tree;
 import Translate.Frame.Access;
-import Translate.Tree.Exp.*;
-import Translate.Tree.Stm.*;
 import Assem.Instr;
 
 public class RegAlloc implements Temp.Map {
+    /**
+     * Solve liveness with bit vectors (LiveBits) rather than Temp sets.
+     */
+    public static boolean bitLiveness = true;
+
+    /**
+     * Debug dumps to print: the control flow graph and interference graph
+     * of every round, and the spills and final allocation.
+     */
+    public static boolean dumpCFG = false, dumpIG = false, dumpAlloc = false;
+
+    /**
+     * After a spill round, update the flow graph, liveness and interference
+     * graph of the blocks the spill code went into, rather than building
+     * them again.  Needs bitLiveness.
+     */
+    public static boolean incremental = true;
+
+    /**
+     * Let spilled temps that do not interfere share a frame slot.
+     */
+    public static boolean shareSlots = true;
+
+    /**
+     * Recompute spilled constants and addresses rather than reloading
+     * them from the frame.
+     */
+    public static boolean rematerialize = true;
+
+    /**
+     * Reuse reloaded and stored values and delete dead stores within each
+     * basic block, rather than loading before every use of a spilled temp
+     * and storing after every def.
+     */
+    public static boolean localSpills = true;
+
+    /**
+     * With localSpills, a value stays in its temp for reuse only while
+     * each use follows the last within this many instructions: holding it
+     * longer competes for registers and gets other temps spilled.
+     */
+    public static int reuseDistance = 3;
+
     FlowGraph.AssemFlowGraph cfg;
     Liveness ig;
     public Set<Temp> spills;
     Color color;
+    SpillSlots slots;
+    // spilled temps recomputed rather than reloaded
+    int rematerialized = 0;
+    // temps made by RewriteProgram, and the loads and stores it added
+    HashSet<Temp> spillTemps = new HashSet<Temp>();
+    int loads = 0, stores = 0;
 
     public Temp get(Temp temp) {
         Temp t = ig.get(temp).color;
@@ -25,75 +70,283 @@ public class RegAlloc implements Temp.Map {
         return t;
     }
     
-    private void RewriteProgram(Translate.Frame frame, LinkedList<Instr> insns) {
-    	// code generator
-    	//Frame.CodeGen cg = frame.codegen();
-    	// allocate memory for spill in frame
-        LinkedHashMap<Temp, Access> spillMap = new LinkedHashMap<Temp, Access>();
+    /**
+     * Add spill code to insns.  A spilled temp with a rematerializable
+     * definition gets no slot: its definition is deleted and the
+     * computation repeated before each use instead.
+     *
+     * With localSpills, spill code is optimized within each basic block.
+     * The temp holding the value of a spilled temp, reloaded or just
+     * defined, serves the following uses too, until the block ends, an
+     * instruction (such as a call) defines a machine register, or
+     * reuseDistance instructions pass without a use; such a temp may be
+     * spilled again like any other.  A store that is overwritten in
+     * the block before anything reads it back is deleted.  Temps made here
+     * are spilled again one occurrence at a time, so allocation still
+     * converges.
+     * @return  for each instruction that got spill code, the instructions
+     *          that replace it
+     */
+    private HashMap<Instr, List<Instr>> RewriteProgram(Translate.Frame frame, LinkedList<Instr> insns) {
+        // temps to recompute, by their definitions
+        HashMap<Temp, Instr> remat = new HashMap<Temp, Instr>();
+        LinkedHashSet<Temp> inMemory = new LinkedHashSet<Temp>();
         for (Temp t : spills) {
-        	Access acc = frame.allocLocal(null);
-        	spillMap.put(t, acc);
+            Instr def = ig.get(t).remat;
+            if (def == null)
+                inMemory.add(t);
+            else
+                remat.put(t, def);
         }
-        // make a new instruction list
-        LinkedList<Instr> insnsCopy = new LinkedList<Instr>(insns);
-        insns.clear();
-        // spill the instructions
-        ListIterator<Instr> itr = insnsCopy.listIterator();
-        while(itr.hasNext()) {
-        	Instr insn = itr.next();
-        	for (int i = 0; i < insn.use.length; i++) {
-        		if (spills.contains(insn.use[i])) {
-        			Temp v = new Temp();
-        			Tree.Exp vFrame = spillMap.get(insn.use[i]).exp(frame.FP());
-        			Tree.Stm stm = new MOVE(new TEMP(v), vFrame);
-        			Frame.CodeGen cg = frame.codegen();
-        			stm.accept(cg);
-        			LinkedList<Assem.Instr> insnsFch = cg.insns();
-        			insn.use[i] = v;
-        			insns.addAll(insnsFch);
+        rematerialized += remat.size();
+    	// allocate memory for spill in frame
+        Map<Temp, Access> spillMap;
+        if (shareSlots)
+            spillMap = slots.allocate(inMemory, ig);
+        else {
+            spillMap = new LinkedHashMap<Temp, Access>();
+            for (Temp t : inMemory)
+                spillMap.put(t, frame.allocLocal(null));
+        }
+        HashSet<Temp> registers = new HashSet<Temp>(Arrays.asList(frame.registers()));
+        // the temp holding each spilled temp's value, within a block
+        HashMap<Temp, Temp> inReg = new HashMap<Temp, Temp>();
+        // the instruction that last used or defined each of those
+        HashMap<Temp, Integer> touched = new HashMap<Temp, Integer>();
+        int n = 0;
+        // the store of each spilled temp not yet read back, and the code
+        // it is in, within a block
+        HashMap<Temp, List<Instr>> pending = new HashMap<Temp, List<Instr>>();
+        HashMap<Temp, List<Instr>> pendingIn = new HashMap<Temp, List<Instr>>();
+        // the code replacing each instruction
+        ArrayList<List<Instr>> code = new ArrayList<List<Instr>>();
+        for (Instr insn : insns) {
+        	n++;
+        	ArrayList<Instr> c = new ArrayList<Instr>();
+        	code.add(c);
+        	if (insn instanceof Instr.LABEL) {
+        		inReg.clear();
+        		pending.clear();
+        		c.add(insn);
+        		continue;
+        	}
+        	if (insn.def.length == 1 && remat.containsKey(insn.def[0])) {
+        		// the only definition, repeated at each use
+        		continue;
+        	}
+        	if (insn instanceof Instr.MOVE) {
+        		Temp src = insn.use[0], dst = insn.def[0];
+        		Access a = spillMap.get(src);
+        		if (a != null && a == spillMap.get(dst)) {
+        			// from a slot to itself: dst now has the value src has
+        			pending.remove(src);
+        			pending.remove(dst);
+        			Temp v = inReg.get(src);
+        			if (v != null) {
+        				inReg.put(dst, v);
+        				touched.put(src, n);
+        				touched.put(dst, n);
+        			} else
+        				inReg.remove(dst);
+        			continue;
         		}
         	}
+        	// temps made for this instruction
+        	HashSet<Temp> fresh = new HashSet<Temp>();
+        	for (int i = 0; i < insn.use.length; i++) {
+        		Temp t = insn.use[i];
+        		if (!spills.contains(t))
+        			continue;
+        		Temp v = inReg.get(t);
+        		touched.put(t, n);
+        		if (v == null) {
+        			v = new Temp();
+        			// live only across one instruction unless reused:
+        			// spilling it again would not help
+        			v.spillable = false;
+        			fresh.add(v);
+        			Instr def = remat.get(t);
+        			if (def != null)
+        				c.add(new Instr.OPER(def.assem, new Temp[] { v },
+        						def.use.clone(), def.jumps));
+        			else {
+        				c.addAll(frame.load(spillMap.get(t), v));
+        				loads++;
+        				// the store is read back
+        				pending.remove(t);
+        			}
+        			inReg.put(t, v);
+        		} else if (!fresh.contains(v))
+        			v.spillable = true;
+        		insn.use[i] = v;
+        	}
         	// insert between use and def
-        	insns.addLast(insn);
+        	c.add(insn);
         	for (int i = 0; i < insn.def.length; i++) {
-        		if (spills.contains(insn.def[i])) {
-        			Temp v = new Temp();
-        			Tree.Exp vFrame = spillMap.get(insn.def[i]).exp(frame.FP());
-        			Tree.Stm stm = new MOVE(vFrame, new TEMP(v));
-        			Frame.CodeGen cg = frame.codegen();
-        			stm.accept(cg);
-        			LinkedList<Assem.Instr> insnsStr = cg.insns();
-        			insn.def[i] = v;
-        			insns.addAll(insnsStr);
+        		Temp t = insn.def[i];
+        		if (!spills.contains(t))
+        			continue;
+        		Temp v = new Temp();
+        		v.spillable = false;
+        		fresh.add(v);
+        		insn.def[i] = v;
+        		List<Instr> store = frame.store(spillMap.get(t), v);
+        		List<Instr> dead = pending.remove(t);
+        		if (dead != null) {
+        			// overwritten before it was read
+        			pendingIn.get(t).removeAll(dead);
+        			stores--;
         		}
+        		c.addAll(store);
+        		stores++;
+        		pending.put(t, store);
+        		pendingIn.put(t, c);
+        		inReg.put(t, v);
+        		touched.put(t, n);
+        	}
+        	spillTemps.addAll(fresh);
+        	boolean clobbers = false;
+        	for (Temp d : insn.def)
+        		clobbers |= registers.contains(d);
+        	if (!localSpills || insn.jumps.length != 0)
+        		pending.clear();
+        	if (!localSpills || insn.jumps.length != 0 || clobbers)
+        		inReg.clear();
+        	else {
+        		// temps of earlier spill code are not reused
+        		inReg.keySet().removeAll(spillTemps);
+        		// nor values held too long
+        		for (Iterator<Temp> i = inReg.keySet().iterator(); i.hasNext();)
+        			if (n - touched.get(i.next()) >= reuseDistance)
+        				i.remove();
         	}
         }
+        HashMap<Instr, List<Instr>> rewritten = new HashMap<Instr, List<Instr>>();
+        Iterator<List<Instr>> c = code.iterator();
+        LinkedList<Instr> old = new LinkedList<Instr>(insns);
+        insns.clear();
+        for (Instr insn : old) {
+        	List<Instr> replacement = c.next();
+        	if (replacement.size() != 1 || replacement.get(0) != insn)
+        		rewritten.put(insn, replacement);
+        	insns.addAll(replacement);
+        }
+        return rewritten;
+    }
+
+    /**
+     * Put the spill code of rewritten into the blocks of cfg.
+     * @return  the blocks changed
+     */
+    private static List<FlowGraph.AssemNode> Patch(FlowGraph.AssemFlowGraph cfg,
+            HashMap<Instr, List<Instr>> rewritten) {
+        ArrayList<FlowGraph.AssemNode> changed = new ArrayList<FlowGraph.AssemNode>();
+        for (FlowGraph.AssemNode b : cfg.nodes()) {
+            LinkedList<Instr> instrs = null;
+            for (Instr i : b.instrs)
+                if (rewritten.containsKey(i)) {
+                    instrs = new LinkedList<Instr>();
+                    break;
+                }
+            if (instrs == null)
+                continue;
+            for (Instr i : b.instrs) {
+                List<Instr> code = rewritten.get(i);
+                if (code == null)
+                    instrs.add(i);
+                else
+                    instrs.addAll(code);
+            }
+            b.instrs = instrs;
+            cfg.summarize(b);
+            changed.add(b);
+        }
+        return changed;
     }
 
     public RegAlloc(Translate.Frame frame, LinkedList<Instr> insns,
             java.io.PrintWriter out) {
+        this(frame, insns, out, new Stats.Stats(frame.name.toString()));
+    }
+
+    public RegAlloc(Translate.Frame frame, LinkedList<Instr> insns,
+            java.io.PrintWriter out, Stats.Stats stats) {
+        HashMap<Instr, List<Instr>> rewritten = null;
+        slots = new SpillSlots(frame);
         for (;;) {
-            out.println("# Control Flow Graph:");
-            cfg = new FlowGraph.AssemFlowGraph(frame, insns);
-            cfg.show(out);
-            out.println("# Interference Graph:");
-            ig = new Liveness(cfg, frame);
-            ig.show(out);
+            stats.round++;
+            if (rewritten != null && ig.updatable()) {
+                stats.start("update");
+                ig.update(spills, Patch(cfg, rewritten));
+                stats.stop();
+            } else {
+                stats.start("cfg");
+                cfg = new FlowGraph.AssemFlowGraph(frame, insns);
+                stats.stop();
+                stats.start("liveness");
+                ig = new Liveness(cfg, frame);
+                stats.stop();
+            }
+            if (dumpCFG) {
+                out.println("# Control Flow Graph:");
+                cfg.show(out);
+            }
+            stats.count("instrs", insns.size());
+            stats.count("temps", ig.size() - ig.precolored.size() - ig.dead.size());
+            stats.count("nodes", ig.size());
+            stats.count("edges", ig.edges);
+            stats.count("moves", ig.moves().size());
+            if (dumpIG) {
+                out.println("# Interference Graph:");
+                ig.show(out);
+            }
+            stats.start("color");
+            if (incremental && ig.updatable())
+                ig.save();
             color = new Color(ig, frame);
             spills = color.spills();
+            stats.stop();
+            stats.count("coalesced", color.coalesced());
+            stats.count("candidates", color.candidates);
+            stats.count("spills", spills.size());
+            if (!spills.isEmpty()) {
+                double cost = 0;
+                for (Temp s : spills)
+                    cost += ig.get(s).spillCost;
+                stats.count("spillcost", Math.round(cost));
+            }
             if (spills.isEmpty())
                 break;
-            out.println("# Spills:");
-            for (Temp s : spills)
-                out.println(s);
+            if (dumpAlloc) {
+                out.println("# Spills:");
+                for (Temp s : spills)
+                    out.println(s);
+            }
             // rewrite programs
-            RewriteProgram(frame, insns);
+            stats.start("rewrite");
+            rewritten = RewriteProgram(frame, insns);
+            if (!incremental)
+                rewritten = null;
+            stats.stop();
+        }
+        int rounds = stats.round;
+        stats.round = 0;
+        stats.count("rounds", rounds);
+        if (loads + stores > 0) {
+            stats.count("loads", loads);
+            stats.count("stores", stores);
         }
-        out.println("# Register Allocation:");
-        for (Node n : ig.nodes()) {
-            out.print(n.temp);
-            out.print("->");
-            out.println(n.color);
+        if (rematerialized > 0)
+            stats.count("remat", rematerialized);
+        if (slots.size() > 0)
+            stats.count("slots", slots.size());
+        if (dumpAlloc) {
+            out.println("# Register Allocation:");
+            for (Node n : ig.nodes()) {
+                out.print(n.temp);
+                out.print("->");
+                out.println(n.color);
+            }
         }
     }
 }
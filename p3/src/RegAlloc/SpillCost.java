@@ -0,0 +1,88 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package RegAlloc;
+
+import java.util.*;
+
+import Assem.Instr;
+import FlowGraph.AssemFlowGraph;
+import FlowGraph.AssemNode;
+import Translate.Temp;
+
+/**
+ * Spill costs for the nodes of an interference graph.
+ *
+ * The cost of spilling a temp is the number of loads and stores the spill
+ * would add, estimated as its uses and defs each weighted by 10 to the
+ * loop nesting depth of their block.  Loops are the natural loops of the
+ * flow graph, found from its dominators.  A temp that is not spillable
+ * (such as one introduced to reload or store a spilled temp) has infinite
+ * cost.  Color divides the cost by the node's degree, preferring to spill
+ * cheap temps that free the most registers.
+ *
+ * A temp whose only definition the frame says is rematerializable (a
+ * constant or an address), or is a move from such a temp, is recomputed
+ * before each use rather than stored and reloaded, so its def costs
+ * nothing and it is marked with the instruction to repeat.
+ */
+public class SpillCost {
+    // deeper loops than this all weigh the same
+    private static final int maxDepth = 8;
+
+    /**
+     * Loop nesting depth of each block, by flow graph node index.
+     */
+    public final int[] depth;
+
+    private final Translate.Frame frame;
+
+    public SpillCost(AssemFlowGraph flow, Translate.Frame frame) {
+        this.frame = frame;
+        AssemNode entry = flow.size() == 0 ? null : flow.nodes().iterator().next();
+        depth = new Graph.Dominators<Instr, AssemNode>(flow, entry).loopDepth();
+    }
+
+    /**
+     * Set the spill cost of every node of ig that appears in flow.
+     */
+    public void apply(AssemFlowGraph flow, InterferenceGraph ig) {
+        for (Node n : ig.nodes())
+            n.remat = null;
+        if (RegAlloc.rematerialize) {
+            // the only definition of each temp defined once
+            HashMap<Node, Instr> only = new HashMap<Node, Instr>();
+            HashSet<Node> defined = new HashSet<Node>();
+            for (AssemNode b : flow.nodes())
+                for (Instr i : b.instrs)
+                    for (Temp t : i.def) {
+                        Node n = ig.get(t);
+                        if (defined.add(n))
+                            only.put(n, i);
+                        else
+                            only.remove(n);
+                    }
+            for (Map.Entry<Node, Instr> e : only.entrySet()) {
+                Instr i = e.getValue();
+                if (i instanceof Instr.MOVE)
+                    i = only.get(ig.get(((Instr.MOVE) i).src()));
+                if (i != null && frame.rematerializable(i))
+                    e.getKey().remat = i;
+            }
+        }
+        for (AssemNode b : flow.nodes()) {
+            double w = Math.pow(10, Math.min(depth[b.index()], maxDepth));
+            for (Instr i : b.instrs) {
+                for (Temp t : i.use)
+                    ig.get(t).spillCost += w;
+                for (Temp t : i.def) {
+                    Node n = ig.get(t);
+                    if (n.remat == null)
+                        n.spillCost += w;
+                }
+            }
+        }
+        for (Node n : ig.nodes())
+            if (!n.temp.spillable)
+                n.spillCost = Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,82 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package RegAlloc;
+
+import java.util.*;
+
+import Translate.Frame;
+import Translate.Frame.Access;
+import Translate.Temp;
+
+/**
+ * Frame slots for the spilled temps of a procedure, shared between temps
+ * that are never live at the same time.
+ *
+ * Spilled temps are colored onto slots first-fit, as registers are, with
+ * the interference graph of the round that spilled them.  A spilled temp
+ * keeps its live range in memory, so a slot remembers the temps that
+ * interfered with its occupants and a temp spilled in a later round is
+ * checked against those.  A temp made after the slot's first occupant
+ * was spilled (by spill code) is not in those graphs at all, so it may
+ * not join the slot.  A temp first tries the slots of the temps it is
+ * moved to or from, so that the move can be dropped.
+ */
+class SpillSlots {
+    private final Frame frame;
+    private final ArrayList<Access> slots = new ArrayList<Access>();
+    // temps that may not go into each slot
+    private final ArrayList<Set<Temp>> conflicts = new ArrayList<Set<Temp>>();
+    // the ids of temps made after the first occupant of each slot
+    private final ArrayList<Integer> born = new ArrayList<Integer>();
+    private final HashMap<Temp, Integer> slotOf = new HashMap<Temp, Integer>();
+
+    SpillSlots(Frame frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Give each of spills a slot.
+     * @return  the slot of each spilled temp
+     */
+    Map<Temp, Access> allocate(Set<Temp> spills, InterferenceGraph ig) {
+        LinkedHashMap<Temp, Access> map = new LinkedHashMap<Temp, Access>();
+        int now = Temp.count();
+        for (Temp t : spills) {
+            Node n = ig.get(t);
+            int s = -1;
+            for (Move m : n.moveList) {
+                Integer p = slotOf.get(m.src == n ? m.dst.temp : m.src.temp);
+                if (p != null && fits(t, p)) {
+                    s = p;
+                    break;
+                }
+            }
+            for (int i = 0; s < 0 && i < slots.size(); i++)
+                if (fits(t, i))
+                    s = i;
+            if (s < 0) {
+                s = slots.size();
+                slots.add(frame.allocLocal(null));
+                conflicts.add(new HashSet<Temp>());
+                born.add(now);
+            }
+            Set<Temp> c = conflicts.get(s);
+            for (int i = 0; i < n.adjCount; i++)
+                c.add(ig.node(n.adjList[i]).temp);
+            slotOf.put(t, s);
+            map.put(t, slots.get(s));
+        }
+        return map;
+    }
+
+    private boolean fits(Temp t, int slot) {
+        return t.id < born.get(slot) && !conflicts.get(slot).contains(t);
+    }
+
+    /**
+     * The number of slots allocated.
+     */
+    int size() {
+        return slots.size();
+    }
+}
@@ -0,0 +1,170 @@
+/* Copyright (C) 1997-2005, Antony L Hosking.
+ * All rights reserved.  */
+package Stats;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Compile-time statistics for one procedure (or for the module as a whole):
+ * wall time and allocated bytes per phase, and named counts, each tagged
+ * with the register allocation round it belongs to (0 outside RegAlloc).
+ * Nothing is recorded unless Stats.enabled is set.
+ */
+public class Stats {
+    public static boolean enabled = false;
+
+    private static final List<Stats> all =
+        Collections.synchronizedList(new ArrayList<Stats>());
+
+    private static final com.sun.management.ThreadMXBean threads;
+    static {
+        java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean t = null;
+        if (b instanceof com.sun.management.ThreadMXBean) {
+            t = (com.sun.management.ThreadMXBean) b;
+            if (t.isThreadAllocatedMemorySupported())
+                t.setThreadAllocatedMemoryEnabled(true);
+            else
+                t = null;
+        }
+        threads = t;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 if the VM cannot
+     * say.
+     */
+    private static long allocated() {
+        if (threads == null)
+            return -1;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static class Phase {
+        final String name;
+        final int round;
+        final long nanos, bytes;
+        Phase(String n, int r, long t, long b) {
+            name = n; round = r; nanos = t; bytes = b;
+        }
+    }
+
+    private static class Count {
+        final String name;
+        final int round;
+        final long value;
+        Count(String n, int r, long v) {
+            name = n; round = r; value = v;
+        }
+    }
+
+    public final String proc;
+    /**
+     * The current register allocation round.
+     */
+    public int round = 0;
+    private final ArrayList<Phase> phases = new ArrayList<Phase>();
+    private final ArrayList<Count> counts = new ArrayList<Count>();
+    private String phase = null;
+    private long startNanos, startBytes;
+
+    public Stats(String proc) {
+        this.proc = proc;
+        if (enabled)
+            all.add(this);
+    }
+
+    /**
+     * Begin timing phase name, ending any phase already running.
+     */
+    public void start(String name) {
+        if (!enabled)
+            return;
+        if (phase != null)
+            stop();
+        phase = name;
+        startBytes = allocated();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * End the phase begun by the last start().
+     */
+    public void stop() {
+        if (!enabled || phase == null)
+            return;
+        long t = System.nanoTime() - startNanos;
+        long b = startBytes < 0 ? -1 : allocated() - startBytes;
+        phases.add(new Phase(phase, round, t, b));
+        phase = null;
+    }
+
+    public void count(String name, long value) {
+        if (enabled)
+            counts.add(new Count(name, round, value));
+    }
+
+    private static String quote(String s) {
+        StringBuilder b = new StringBuilder(s.length() + 2);
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                b.append('\\');
+            b.append(c);
+        }
+        return b.append('"').toString();
+    }
+
+    /**
+     * Write everything recorded so far as JSON.
+     */
+    public static void json(PrintWriter out) {
+        out.println("{\"procs\": [");
+        synchronized (all) {
+            for (int i = 0; i < all.size(); i++) {
+                Stats s = all.get(i);
+                out.println("  {\"name\": " + quote(s.proc) + ",");
+                out.println("   \"phases\": [");
+                for (int j = 0; j < s.phases.size(); j++) {
+                    Phase p = s.phases.get(j);
+                    out.print("     {\"phase\": " + quote(p.name)
+                              + ", \"round\": " + p.round
+                              + ", \"ns\": " + p.nanos
+                              + ", \"bytes\": " + p.bytes + "}");
+                    out.println(j + 1 < s.phases.size() ? "," : "");
+                }
+                out.println("   ],");
+                out.println("   \"counts\": [");
+                for (int j = 0; j < s.counts.size(); j++) {
+                    Count c = s.counts.get(j);
+                    out.print("     {\"count\": " + quote(c.name)
+                              + ", \"round\": " + c.round
+                              + ", \"value\": " + c.value + "}");
+                    out.println(j + 1 < s.counts.size() ? "," : "");
+                }
+                out.println("   ]}" + (i + 1 < all.size() ? "," : ""));
+            }
+        }
+        out.println("]}");
+    }
+
+    /**
+     * Write everything recorded so far as CSV, one row per phase or count.
+     */
+    public static void csv(PrintWriter out) {
+        out.println("proc,round,name,ns,bytes,value");
+        synchronized (all) {
+            for (Stats s : all) {
+                for (Phase p : s.phases)
+                    out.println(s.proc + "," + p.round + "," + p.name + ","
+                                + p.nanos + "," + p.bytes + ",");
+                for (Count c : s.counts)
+                    out.println(s.proc + "," + c.round + "," + c.name + ",,,"
+                                + c.value);
+            }
+        }
+    }
+}
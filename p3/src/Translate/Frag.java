@@ -30,6 +30,10 @@ public abstract class Frag {
     public static class Proc extends Frag {
         public Tree.Stm body;
         public Frame frame;
+        /**
+         * Declared <*INLINE*>: substitute the body at calls where possible.
+         */
+        public boolean inline = false;
 
         public Proc(Tree.Stm b, Frame f) {
             body = b;
@@ -183,6 +183,54 @@ public abstract class Frame {
      */
     public abstract void procEntryExit2(LinkedList<Assem.Instr> insns);
 
+    /**
+     * Instructions to load the variable at access a into temp t, as for
+     * the reload of a spilled temp.  By default, the code generated for
+     * the move of a's expression into t.
+     * 
+     * @param a
+     *                the access to load
+     * @param t
+     *                the temp to load into
+     * @return the instructions
+     */
+    public List<Assem.Instr> load(Access a, Temp t) {
+        CodeGen cg = codegen();
+        new Tree.Stm.MOVE(new Tree.Exp.TEMP(t), a.exp(FP())).accept(cg);
+        return cg.insns();
+    }
+
+    /**
+     * Instructions to store temp t into the variable at access a, as for
+     * the store of a spilled temp.  By default, the code generated for
+     * the move of t into a's expression.
+     * 
+     * @param a
+     *                the access to store
+     * @param t
+     *                the temp to store
+     * @return the instructions
+     */
+    public List<Assem.Instr> store(Access a, Temp t) {
+        CodeGen cg = codegen();
+        new Tree.Stm.MOVE(a.exp(FP()), new Tree.Exp.TEMP(t)).accept(cg);
+        return cg.insns();
+    }
+
+    /**
+     * Can the value that instruction i defines be recomputed by repeating
+     * i anywhere in the procedure, instead of being kept in a register or
+     * spilled to memory?  Only if i reads no registers or memory and has
+     * no other effect, such as loading a constant or an address.
+     * 
+     * @param i
+     *                the only instruction defining its temp
+     * @return whether i can be repeated before each use of the temp
+     */
+    public boolean rematerializable(Assem.Instr i) {
+        return false;
+    }
+
     /**
      * Wrap the assembly body of a procedure with entry/exit after register
      * allocation.
@@ -3,13 +3,36 @@
 package Translate;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Temp {
-    private static int count;
-    private final String name;
+    // shared by all threads running the back end
+    private static final AtomicInteger count = new AtomicInteger();
+    // ids below these belong to temps and labels kept across compilations
+    private static int kept = -1, keptLabels = -1;
+
+    /**
+     * Temps are numbered densely from 0, so passes can index arrays by id
+     * (sized by count()) instead of hashing.  Each compilation numbers its
+     * temps from where the kept ones (the target's registers) end.
+     */
+    public final int id = count.getAndIncrement();
+
+    /**
+     * The number of temps created so far; every id is less than this.
+     */
+    public static int count() {
+        return count.get();
+    }
+
+    // null for generated temps until the name is first asked for
+    private String name;
 
     public String toString() {
-        return name;
+        String n = name;
+        if (n == null)
+            name = n = "t." + id;
+        return n;
     }
 
     /**
@@ -17,7 +40,7 @@ public class Temp {
      * @param name      name of the label
      * @return          the label, or null if name is null
      */
-    public static Label getLabel(String name) {
+    public static synchronized Label getLabel(String name) {
         if (name == null) return null;
         Label l = labels.get(name);
         if (l == null) {
@@ -28,6 +51,31 @@ public class Temp {
     }
     private static HashMap<String, Label> labels = new HashMap<String, Label>();
 
+    /**
+     * Forget all named labels and number temps and labels from the last
+     * keep(), so that a long-running process can start a new compilation
+     * without the label table or the arrays indexed by id growing, and
+     * names its labels as a fresh process would.
+     */
+    public static synchronized void reset() {
+        labels.clear();
+        if (kept >= 0)
+            count.set(kept);
+        if (keptLabels >= 0)
+            Label.count.set(keptLabels);
+    }
+
+    /**
+     * Keep the temps and labels made so far across compilations.  Call
+     * this once the target frame has made its registers; the temps and
+     * labels made after it belong to the compilation and their ids are
+     * reused by the next one.
+     */
+    public static synchronized void keep() {
+        kept = Math.max(kept, count.get());
+        keptLabels = Math.max(keptLabels, Label.count.get());
+    }
+
     public static Label getLabel() {
         return new Label();
     }
@@ -37,7 +85,6 @@ public class Temp {
     }
 
     public Temp() {
-        this("t." + count++);
     }
 
     public boolean spillable = true;
@@ -53,26 +100,74 @@ public class Temp {
     }
 
     public static class Label {
-        private final String string;
-        private static int count;
+        private static final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Labels are numbered densely from 0, like temps.
+         */
+        public final int id = count.getAndIncrement();
+
+        /**
+         * The number of labels created so far; every id is less than this.
+         */
+        public static int count() {
+            return count.get();
+        }
+
+        // the procedure whose back end made this label, and its number
+        // there; proc is -1 for labels made outside any procedure
+        private final int proc, local;
+
+        // the procedure and next number for labels made by this thread
+        private static final ThreadLocal<int[]> current =
+            new ThreadLocal<int[]>();
+
+        /**
+         * Name the labels this thread makes from now on until end() by
+         * their order within procedure proc, instead of by id, so that the
+         * names do not depend on how the back end of other procedures is
+         * interleaved with this one's (see -jobs).
+         */
+        public static void begin(int proc) {
+            current.set(new int[] { proc, 0 });
+        }
+
+        public static void end() {
+            current.remove();
+        }
+
+        // null for generated labels until the name is first asked for
+        private String string;
 
         /**
          * a printable representation of the label, for use in assembly language
          * output.
          */
         public String toString() {
-            return string;
+            String s = string;
+            if (s == null)
+                string = s = (proc < 0) ? "L." + id : "L." + proc + "." + local;
+            return s;
         }
 
         private Label(String name) {
             string = name;
+            proc = -1;
+            local = 0;
         }
 
         /**
          * Makes a new label with an arbitrary name.
          */
         public Label() {
-            this("L." + count++);
+            int[] c = current.get();
+            if (c == null) {
+                proc = -1;
+                local = 0;
+            } else {
+                proc = c[0];
+                local = c[1]++;
+            }
         }
     }
 